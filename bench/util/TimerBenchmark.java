@@ -0,0 +1,164 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for the timer. Run with <tt>ant bench</tt>.
+ * <p>
+ * Each trial uses a new {@link Scheduler} with queueSize events already
+ * pending, far enough ahead that they never fall due. The add/cancel
+ * benchmarks measure throughput with 1, 2, 4 and 8 producer threads. It is
+ * measured end to end: every so often each producer waits for the timer
+ * thread to take in what it has submitted, so the figure is what the timer
+ * can sustain rather than how fast its submission queue fills up. The dispatch
+ * benchmark samples the time from adding an event with no delay to it
+ * running, so JMH reports latency percentiles. Allocation per operation
+ * comes from the GC profiler (<tt>-prof gc</tt>), which the Ant target
+ * turns on by default.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TimerBenchmark
+{
+	/** Operations each producer does before waiting for the timer thread */
+	private final static int BACKLOG = 1024;
+
+	private final static Runnable NOOP = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+		}
+	};
+
+	/** Number of events pending before the benchmark starts */
+	@Param({"0", "10000", "1000000"})
+	public int queueSize;
+
+	/** Queue type: heap (the default), or wheel for a timing wheel */
+	@Param({"heap", "wheel"})
+	public String queue;
+
+	/** Lazy cancellation threshold; 0 for immediate removal */
+	@Param({"0", "0.5"})
+	public double lazy;
+
+	private Scheduler scheduler;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		scheduler = new Scheduler("TimerBenchmark", 1);
+		if(queue.equals("wheel"))
+		{
+			scheduler.useTimingWheel(10, 4096);
+		}
+		scheduler.setLazyCancellation(lazy);
+		for(int i=0; i<queueSize; i++)
+		{
+			scheduler.addTimedEvent(NOOP, 3600000 + i, false);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void endIteration()
+	{
+		// Don't leave a backlog for the next iteration
+		scheduler.awaitSubmissions();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		scheduler.shutdown();
+	}
+
+	/** Operations done by one producer thread */
+	@State(Scope.Thread)
+	public static class Producer
+	{
+		int ops;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Threads(1)
+	public void addCancel1(Producer p)
+	{
+		addCancel(p);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Threads(2)
+	public void addCancel2(Producer p)
+	{
+		addCancel(p);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Threads(4)
+	public void addCancel4(Producer p)
+	{
+		addCancel(p);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Threads(8)
+	public void addCancel8(Producer p)
+	{
+		addCancel(p);
+	}
+
+	/**
+	 * Adds and cancels an event, waiting for the timer thread to catch up
+	 * after every {@link #BACKLOG} operations.
+	 * @param p Producer state
+	 */
+	private void addCancel(Producer p)
+	{
+		scheduler.cancelTimedEvent(scheduler.addTimedEvent(NOOP, 60000, false));
+		if(++p.ops == BACKLOG)
+		{
+			p.ops = 0;
+			scheduler.awaitSubmissions();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public Object dispatch()
+	{
+		return scheduler.completeAfter(Boolean.TRUE, 0).join();
+	}
+}
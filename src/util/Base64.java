@@ -144,6 +144,18 @@ public class Base64
     /** Preferred encoding. */
     private final static String PREFERRED_ENCODING = "UTF-8";
     
+    
+    /** Size of the blocks that the streams read and convert at a time. */
+    private final static int BLOCK_SIZE = 8192;
+    
+    
+    /** Smallest piece of data worth handing to another thread. */
+    private final static int MIN_PIECE_SIZE = 64 * 1024;
+    
+    
+    /** Size of the windows in which files are mapped into memory. */
+    private final static int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+    
 	
     // I think I end up not using the BAD_ENCODING indicator.
     //private final static byte BAD_ENCODING    = -9; // Indicates error in encoding
@@ -378,6 +390,94 @@ public class Base64
 		else return _STANDARD_DECODABET;
 		
 	}	// end getAlphabet
+	
+	
+/* ********  F A S T   P A T H   T A B L E S  ******** */
+	
+	
+    /**
+     * Tables for encoding twelve bits at a time, one per alphabet (see
+     * <tt>alphabetIndex</tt>). Each entry holds two output characters, the
+     * first in the high byte. Built when first needed.
+     */
+    private final static java.util.concurrent.atomic.AtomicReferenceArray<short[]> ENCODE_TABLES =
+        new java.util.concurrent.atomic.AtomicReferenceArray<short[]>( 3 );
+    
+    
+    /**
+     * Tables for decoding two characters at a time, one per alphabet. Each
+     * entry, indexed by (first character &lt;&lt; 8) | second character, holds
+     * the twelve decoded bits, or -1 if either character is not in the
+     * alphabet. White space, equals signs and characters above 127 are all
+     * -1, and are left to the one-character-at-a-time code.
+     */
+    private final static java.util.concurrent.atomic.AtomicReferenceArray<short[]> DECODE_TABLES =
+        new java.util.concurrent.atomic.AtomicReferenceArray<short[]>( 3 );
+    
+    
+    /**
+     * Returns a number for the alphabet chosen by the options, picked the
+     * same way as in getAlphabet.
+     * @param options Options
+     * @return 0 for standard, 1 for URL-safe, 2 for ordered
+     */
+    private final static int alphabetIndex( int options )
+    {
+        if( (options & URL_SAFE) == URL_SAFE ) return 1;
+        else if( (options & ORDERED) == ORDERED ) return 2;
+        else return 0;
+    }   // end alphabetIndex
+    
+    
+    /**
+     * Returns the twelve-bit encoding table for the options specified.
+     * @param options Options
+     * @return Table of 4096 character pairs
+     */
+    private static short[] getEncodeTable( int options )
+    {
+        int index = alphabetIndex( options );
+        short[] table = ENCODE_TABLES.get( index );
+        if( table == null )
+        {
+            byte[] ALPHABET = getAlphabet( options );
+            table = new short[ 4096 ];
+            for( int i = 0; i < 4096; i++ )
+            {
+                table[ i ] = (short)( ( ALPHABET[ i >>> 6 ] << 8 ) | ALPHABET[ i & 0x3f ] );
+            }   // end for: each twelve-bit value
+            // If two threads get here at once they build the same table
+            ENCODE_TABLES.set( index, table );
+        }   // end if: not built yet
+        return table;
+    }   // end getEncodeTable
+    
+    
+    /**
+     * Returns the two-character decoding table for the options specified.
+     * @param options Options
+     * @return Table of 65536 twelve-bit values
+     */
+    private static short[] getDecodeTable( int options )
+    {
+        int index = alphabetIndex( options );
+        short[] table = DECODE_TABLES.get( index );
+        if( table == null )
+        {
+            byte[] ALPHABET = getAlphabet( options );
+            table = new short[ 65536 ];
+            java.util.Arrays.fill( table, (short)-1 );
+            for( int a = 0; a < 64; a++ )
+            {
+                for( int b = 0; b < 64; b++ )
+                {
+                    table[ ( ALPHABET[ a ] << 8 ) | ALPHABET[ b ] ] = (short)( ( a << 6 ) | b );
+                }   // end for: second character
+            }   // end for: first character
+            DECODE_TABLES.set( index, table );
+        }   // end if: not built yet
+        return table;
+    }   // end getDecodeTable
         
 
     
@@ -485,6 +585,130 @@ public class Base64
     }   // end encode3to4
     
     
+    /**
+     * Encodes all the complete three-byte groups in part of
+     * <var>source</var>, leaving any one or two bytes at the end for
+     * encode3to4 to pad. Twelve bytes are read at a time, into a long and an
+     * int, and turned into sixteen characters with eight lookups in the
+     * twelve-bit table, rather than one quantum at a time; what is left of
+     * each line goes six and then three bytes at a time. Line breaks go
+     * exactly where the one-quantum-at-a-time loop in encodeBytes would put
+     * them: after every 76 characters, including at the very end.
+     * This method does not check that <var>destination</var> is big enough.
+     *
+     * @param source the array to convert
+     * @param off the index where conversion begins
+     * @param len the number of bytes to convert
+     * @param destination the array to hold the conversion
+     * @param destOffset the index where output will be put
+     * @param breakLines true to add line breaks
+     * @param options alphabet type is pulled from this (standard, url-safe, ordered)
+     * @return index in <var>destination</var> after the last byte written
+     */
+    private static int encodeQuanta( 
+     byte[] source, int off, int len,
+     byte[] destination, int destOffset, boolean breakLines, int options )
+    {
+        short[] table = getEncodeTable( options );
+        int end = off + len - len % 3;
+        int d = off;
+        int e = destOffset;
+        while( d < end )
+        {
+            int lineStart = d;
+            int lineEnd = breakLines ? Math.min( end, d + MAX_LINE_LENGTH / 4 * 3 ) : end;
+            
+            // Twelve bytes at a time
+            for( ; d + 12 <= lineEnd; d += 12, e += 16 )
+            {
+                long hi =   ( (long)( source[ d     ] & 0xff ) << 56 )
+                          | ( (long)( source[ d + 1 ] & 0xff ) << 48 )
+                          | ( (long)( source[ d + 2 ] & 0xff ) << 40 )
+                          | ( (long)( source[ d + 3 ] & 0xff ) << 32 )
+                          | ( (long)( source[ d + 4 ] & 0xff ) << 24 )
+                          | (       ( source[ d + 5 ] & 0xff ) << 16 )
+                          | (       ( source[ d + 6 ] & 0xff ) <<  8 )
+                          | (       ( source[ d + 7 ] & 0xff )       );
+                int lo =   ( ( source[ d +  8 ] & 0xff ) << 24 )
+                         | ( ( source[ d +  9 ] & 0xff ) << 16 )
+                         | ( ( source[ d + 10 ] & 0xff ) <<  8 )
+                         | ( ( source[ d + 11 ] & 0xff )       );
+                int c0 = table[ (int)( hi >>> 52 )         ];
+                int c1 = table[ (int)( hi >>> 40 ) & 0xfff ];
+                int c2 = table[ (int)( hi >>> 28 ) & 0xfff ];
+                int c3 = table[ (int)( hi >>> 16 ) & 0xfff ];
+                int c4 = table[ (int)( hi >>>  4 ) & 0xfff ];
+                int c5 = table[ ( (int)( hi & 0xf ) << 8 ) | ( lo >>> 24 ) ];
+                int c6 = table[ ( lo >>> 12 ) & 0xfff ];
+                int c7 = table[ ( lo        ) & 0xfff ];
+                destination[ e      ] = (byte)( c0 >> 8 );
+                destination[ e +  1 ] = (byte)( c0      );
+                destination[ e +  2 ] = (byte)( c1 >> 8 );
+                destination[ e +  3 ] = (byte)( c1      );
+                destination[ e +  4 ] = (byte)( c2 >> 8 );
+                destination[ e +  5 ] = (byte)( c2      );
+                destination[ e +  6 ] = (byte)( c3 >> 8 );
+                destination[ e +  7 ] = (byte)( c3      );
+                destination[ e +  8 ] = (byte)( c4 >> 8 );
+                destination[ e +  9 ] = (byte)( c4      );
+                destination[ e + 10 ] = (byte)( c5 >> 8 );
+                destination[ e + 11 ] = (byte)( c5      );
+                destination[ e + 12 ] = (byte)( c6 >> 8 );
+                destination[ e + 13 ] = (byte)( c6      );
+                destination[ e + 14 ] = (byte)( c7 >> 8 );
+                destination[ e + 15 ] = (byte)( c7      );
+            }   // end for: each twelve bytes
+            
+            // Six bytes, if that many are left on the line
+            if( d + 6 <= lineEnd )
+            {
+                long inBuff =   ( (long)( source[ d     ] & 0xff ) << 40 )
+                              | ( (long)( source[ d + 1 ] & 0xff ) << 32 )
+                              | ( (long)( source[ d + 2 ] & 0xff ) << 24 )
+                              | (       ( source[ d + 3 ] & 0xff ) << 16 )
+                              | (       ( source[ d + 4 ] & 0xff ) <<  8 )
+                              | (       ( source[ d + 5 ] & 0xff )       );
+                int c0 = table[ (int)( inBuff >>> 36 )         ];
+                int c1 = table[ (int)( inBuff >>> 24 ) & 0xfff ];
+                int c2 = table[ (int)( inBuff >>> 12 ) & 0xfff ];
+                int c3 = table[ (int)( inBuff        ) & 0xfff ];
+                destination[ e     ] = (byte)( c0 >> 8 );
+                destination[ e + 1 ] = (byte)( c0      );
+                destination[ e + 2 ] = (byte)( c1 >> 8 );
+                destination[ e + 3 ] = (byte)( c1      );
+                destination[ e + 4 ] = (byte)( c2 >> 8 );
+                destination[ e + 5 ] = (byte)( c2      );
+                destination[ e + 6 ] = (byte)( c3 >> 8 );
+                destination[ e + 7 ] = (byte)( c3      );
+                d += 6;
+                e += 8;
+            }   // end if: six bytes
+            
+            // Odd quantum at the end of a line
+            if( d < lineEnd )
+            {
+                int inBuff =   ( ( source[ d     ] & 0xff ) << 16 )
+                             | ( ( source[ d + 1 ] & 0xff ) <<  8 )
+                             | ( ( source[ d + 2 ] & 0xff )       );
+                int c0 = table[ inBuff >>> 12    ];
+                int c1 = table[ inBuff  & 0xfff  ];
+                destination[ e     ] = (byte)( c0 >> 8 );
+                destination[ e + 1 ] = (byte)( c0      );
+                destination[ e + 2 ] = (byte)( c1 >> 8 );
+                destination[ e + 3 ] = (byte)( c1      );
+                d += 3;
+                e += 4;
+            }   // end if: odd quantum
+            
+            if( breakLines && d - lineStart == MAX_LINE_LENGTH / 4 * 3 )
+            {
+                destination[ e++ ] = NEW_LINE;
+            }   // end if: end of line
+        }   // end while: each line
+        return e;
+    }   // end encodeQuanta
+    
+    
     
     /**
      * Serializes an object and returns the Base64-encoded
@@ -667,7 +891,6 @@ public class Base64
     public static String encodeBytes( byte[] source, int off, int len, int options )
     {
         // Isolate options
-        int dontBreakLines = ( options & DONT_BREAK_LINES );
         int gzip           = ( options & GZIP   );
         
         // Compress?
@@ -714,36 +937,8 @@ public class Base64
         // Else, don't compress. Better not to use streams at all then.
         else
         {
-            // Convert option to boolean in way that code likes it.
-            boolean breakLines = dontBreakLines == 0;
-            
-            int    len43   = len * 4 / 3;
-            byte[] outBuff = new byte[   ( len43 )                      // Main 4:3
-                                       + ( (len % 3) > 0 ? 4 : 0 )      // Account for padding
-                                       + (breakLines ? ( len43 / MAX_LINE_LENGTH ) : 0) ]; // New lines      
-            int d = 0;
-            int e = 0;
-            int len2 = len - 2;
-            int lineLength = 0;
-            for( ; d < len2; d+=3, e+=4 )
-            {
-                encode3to4( source, d+off, 3, outBuff, e, options );
-
-                lineLength += 4;
-                if( breakLines && lineLength == MAX_LINE_LENGTH )
-                {   
-                    outBuff[e+4] = NEW_LINE;
-                    e++;
-                    lineLength = 0;
-                }   // end if: end of line
-            }   // en dfor: each piece of array
-
-            if( d < len )
-            {
-                encode3to4( source, d+off, len - d, outBuff, e, options );
-                e += 4;
-            }   // end if: some padding needed
-
+            byte[] outBuff = new byte[ encodedLength( len, options ) ];
+            int e = encode( source, off, len, outBuff, 0, options );
             
             // Return value according to relevant encoding.
             try
@@ -759,6 +954,245 @@ public class Base64
         
     }   // end encodeBytes
     
+    
+    /**
+     * Returns the exact number of bytes or characters that encoding
+     * <var>len</var> bytes will produce, including padding and any line
+     * breaks. The GZIP option is ignored.
+     *
+     * @param len Length of data to convert
+     * @param options Specified options
+     * @return Encoded length
+     * @see Base64#DONT_BREAK_LINES
+     */
+    public static long encodedLength( long len, int options )
+    {
+        long length = ( len + 2 ) / 3 * 4;
+        if( ( options & DONT_BREAK_LINES ) == 0 )
+        {
+            // One after every full line, including the last
+            length += len / ( MAX_LINE_LENGTH / 4 * 3 );
+        }   // end if: breaking lines
+        return length;
+    }   // end encodedLength
+    
+    
+    /**
+     * Returns the exact number of bytes or characters that encoding
+     * <var>len</var> bytes will produce, as above, for use with arrays.
+     *
+     * @param len Length of data to convert
+     * @param options Specified options
+     * @return Encoded length
+     * @throws IllegalArgumentException If the result is too big for an array
+     */
+    public static int encodedLength( int len, int options )
+    {
+        long length = encodedLength( (long)len, options );
+        if( length > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Encoded length too large: " + length );
+        }   // end if: too large
+        return (int)length;
+    }   // end encodedLength
+    
+    
+    /**
+     * Encodes part of a byte array into Base64 notation in an existing
+     * array, without allocating anything. Does not support automatically
+     * gzipping; use {@link #encodeBytes(byte[], int, int, int)} for that.
+     * Use {@link #encodedLength(int, int)} to find out how much room is
+     * needed.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination Array to hold the encoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Specified options (DONT_BREAK_LINES and alphabet)
+     * @return Number of bytes written
+     * @throws IndexOutOfBoundsException If the encoded data won't fit
+     */
+    public static int encode( byte[] source, int off, int len, byte[] destination, int destOffset, int options )
+    {
+        checkRoom( destination.length, destOffset, encodedLength( len, options ) );
+        int e = encodeQuanta( source, off, len, destination, destOffset,
+            ( options & DONT_BREAK_LINES ) == 0, options );
+        int d = len - len % 3;
+
+        if( d < len )
+        {
+            encode3to4( source, d+off, len - d, destination, e, options );
+            e += 4;
+        }   // end if: some padding needed
+        return e - destOffset;
+    }   // end encode
+    
+    
+    /**
+     * Encodes part of a byte array into Base64 notation in an existing
+     * character array, without allocating anything. Otherwise the same as
+     * {@link #encode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination Array to hold the encoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Specified options (DONT_BREAK_LINES and alphabet)
+     * @return Number of characters written
+     * @throws IndexOutOfBoundsException If the encoded data won't fit
+     */
+    public static int encode( byte[] source, int off, int len, char[] destination, int destOffset, int options )
+    {
+        checkRoom( destination.length, destOffset, encodedLength( len, options ) );
+        return encodeTo( source, off, len, destination, null, destOffset, options ) - destOffset;
+    }   // end encode
+    
+    
+    /**
+     * Encodes part of a byte array into Base64 notation in a buffer, starting
+     * at its position, which is moved on past the encoded data. Otherwise the
+     * same as {@link #encode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination Buffer to hold the encoded data
+     * @param options Specified options (DONT_BREAK_LINES and alphabet)
+     * @return Number of bytes written
+     * @throws java.nio.BufferOverflowException If the encoded data won't fit
+     */
+    public static int encode( byte[] source, int off, int len, java.nio.ByteBuffer destination, int options )
+    {
+        int length = encodedLength( len, options );
+        if( destination.remaining() < length )
+            throw new java.nio.BufferOverflowException();
+        
+        int pos = destination.position();
+        if( destination.hasArray() )
+        {
+            encode( source, off, len, destination.array(), destination.arrayOffset() + pos, options );
+        }   // end if: heap buffer
+        else
+        {
+            encodeTo( source, off, len, null, destination, pos, options );
+        }   // end else: direct buffer
+        destination.position( pos + length );
+        return length;
+    }   // end encode
+    
+    
+    /**
+     * Encodes into a character array or a buffer, one quantum at a time,
+     * for the targets that encodeQuanta can't write to. Exactly one of
+     * <var>chars</var> and <var>buffer</var> should be non-null. Buffer
+     * writes use absolute indexes and don't change its position.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param chars Character array for output, or null
+     * @param buffer Buffer for output, or null
+     * @param destOffset Index where output should begin
+     * @param options Specified options
+     * @return Index after the last character written
+     */
+    private static int encodeTo( byte[] source, int off, int len,
+     char[] chars, java.nio.ByteBuffer buffer, int destOffset, int options )
+    {
+        short[] table = getEncodeTable( options );
+        boolean breakLines = ( options & DONT_BREAK_LINES ) == 0;
+        int end = off + len - len % 3;
+        int e = destOffset;
+        int lineLength = 0;
+        for( int d = off; d < end; d += 3 )
+        {
+            int inBuff =   ( ( source[ d     ] & 0xff ) << 16 )
+                         | ( ( source[ d + 1 ] & 0xff ) <<  8 )
+                         | ( ( source[ d + 2 ] & 0xff )       );
+            int c0 = table[ inBuff >>> 12   ];
+            int c1 = table[ inBuff  & 0xfff ];
+            put( chars, buffer, e++, c0 >> 8 );
+            put( chars, buffer, e++, c0 & 0xff );
+            put( chars, buffer, e++, c1 >> 8 );
+            put( chars, buffer, e++, c1 & 0xff );
+            
+            lineLength += 4;
+            if( breakLines && lineLength == MAX_LINE_LENGTH )
+            {
+                put( chars, buffer, e++, NEW_LINE );
+                lineLength = 0;
+            }   // end if: end of line
+        }   // end for: each quantum
+        
+        if( end < off + len )
+        {
+            byte[] ALPHABET = getAlphabet( options );
+            int inBuff =   ( ( source[ end ] & 0xff ) << 16 )
+                         | ( end + 1 < off + len ? ( source[ end + 1 ] & 0xff ) << 8 : 0 );
+            put( chars, buffer, e++, ALPHABET[ ( inBuff >>> 18 )        ] );
+            put( chars, buffer, e++, ALPHABET[ ( inBuff >>> 12 ) & 0x3f ] );
+            put( chars, buffer, e++, end + 1 < off + len ? ALPHABET[ ( inBuff >>> 6 ) & 0x3f ] : EQUALS_SIGN );
+            put( chars, buffer, e++, EQUALS_SIGN );
+        }   // end if: some padding needed
+        return e;
+    }   // end encodeTo
+    
+    
+    /**
+     * Writes one character to whichever of <var>chars</var> and
+     * <var>buffer</var> is not null.
+     *
+     * @param chars Character array, or null
+     * @param buffer Buffer, or null
+     * @param index Index to write at
+     * @param c Character
+     */
+    private static void put( char[] chars, java.nio.ByteBuffer buffer, int index, int c )
+    {
+        if( chars != null )
+            chars[ index ] = (char)c;
+        else
+            buffer.put( index, (byte)c );
+    }   // end put
+    
+    
+    /**
+     * Writes one character to whichever of <var>chars</var> and
+     * <var>buffer</var> is not null, at an absolute index.
+     *
+     * @param chars Character buffer, or null
+     * @param buffer Byte buffer, or null
+     * @param index Index to write at
+     * @param c Character
+     */
+    private static void put( java.nio.CharBuffer chars, java.nio.ByteBuffer buffer, int index, int c )
+    {
+        if( chars != null )
+            chars.put( index, (char)c );
+        else
+            buffer.put( index, (byte)c );
+    }   // end put
+    
+    
+    /**
+     * Throws an exception if there is no room in an array.
+     *
+     * @param length Array length
+     * @param offset Offset where output will begin
+     * @param needed Number of elements that will be written
+     * @throws IndexOutOfBoundsException If there is not enough room
+     */
+    private static void checkRoom( int length, int offset, int needed )
+    {
+        if( offset < 0 || offset > length || needed > length - offset )
+        {
+            throw new IndexOutOfBoundsException( "Need " + needed
+                + " at offset " + offset + " in array of length " + length );
+        }   // end if: no room
+    }   // end checkRoom
+    
 
     
     
@@ -857,6 +1291,145 @@ public class Base64
     
     
     
+    /**
+     * Decodes as many plain eight-character groups as possible from the
+     * start of part of <var>source</var>, using the two-character table.
+     * Four lookups give 48 bits, which are written out as six bytes. Stops
+     * at the first group containing anything other than alphabet characters
+     * (white space, equals signs or bad characters), which the caller then
+     * handles one character at a time.
+     * This method does not check that <var>destination</var> is big enough.
+     *
+     * @param source the Base64 encoded data
+     * @param off the index where decoding begins
+     * @param len the number of characters available
+     * @param destination the array to hold the decoded bytes
+     * @param destOffset the index where output will be put
+     * @param table two-character table from getDecodeTable
+     * @return the number of characters decoded (a multiple of eight)
+     */
+    private static int decodeQuanta( byte[] source, int off, int len, byte[] destination, int destOffset, short[] table )
+    {
+        int s = off;
+        int d = destOffset;
+        int end = off + len - 7;
+        for( ; s < end; s += 8, d += 6 )
+        {
+            int p0 = table[ ( ( source[ s     ] & 0xff ) << 8 ) | ( source[ s + 1 ] & 0xff ) ];
+            int p1 = table[ ( ( source[ s + 2 ] & 0xff ) << 8 ) | ( source[ s + 3 ] & 0xff ) ];
+            int p2 = table[ ( ( source[ s + 4 ] & 0xff ) << 8 ) | ( source[ s + 5 ] & 0xff ) ];
+            int p3 = table[ ( ( source[ s + 6 ] & 0xff ) << 8 ) | ( source[ s + 7 ] & 0xff ) ];
+            if( ( p0 | p1 | p2 | p3 ) < 0 )
+            {
+                break;
+            }   // end if: not all plain characters
+            long outBuff =   ( (long)p0 << 36 )
+                           | ( (long)p1 << 24 )
+                           | ( (long)p2 << 12 )
+                           | (       p3       );
+            destination[ d     ] = (byte)( outBuff >>> 40 );
+            destination[ d + 1 ] = (byte)( outBuff >>> 32 );
+            destination[ d + 2 ] = (byte)( outBuff >>> 24 );
+            destination[ d + 3 ] = (byte)( outBuff >>> 16 );
+            destination[ d + 4 ] = (byte)( outBuff >>>  8 );
+            destination[ d + 5 ] = (byte)( outBuff        );
+        }   // end for: each eight characters
+        return s - off;
+    }   // end decodeQuanta
+    
+    
+    /**
+     * As above, but decoding from a character sequence. Groups containing
+     * characters above 255 also stop the fast path.
+     *
+     * @param source the Base64 encoded data
+     * @param off the index where decoding begins
+     * @param len the number of characters available
+     * @param destination the array to hold the decoded bytes
+     * @param destOffset the index where output will be put
+     * @param table two-character table from getDecodeTable
+     * @return the number of characters decoded (a multiple of eight)
+     */
+    private static int decodeQuanta( CharSequence source, int off, int len, byte[] destination, int destOffset, short[] table )
+    {
+        int s = off;
+        int d = destOffset;
+        int end = off + len - 7;
+        for( ; s < end; s += 8, d += 6 )
+        {
+            int c0 = source.charAt( s     ), c1 = source.charAt( s + 1 );
+            int c2 = source.charAt( s + 2 ), c3 = source.charAt( s + 3 );
+            int c4 = source.charAt( s + 4 ), c5 = source.charAt( s + 5 );
+            int c6 = source.charAt( s + 6 ), c7 = source.charAt( s + 7 );
+            if( ( c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7 ) > 0xff )
+            {
+                break;
+            }   // end if: not all eight-bit characters
+            int p0 = table[ ( c0 << 8 ) | c1 ];
+            int p1 = table[ ( c2 << 8 ) | c3 ];
+            int p2 = table[ ( c4 << 8 ) | c5 ];
+            int p3 = table[ ( c6 << 8 ) | c7 ];
+            if( ( p0 | p1 | p2 | p3 ) < 0 )
+            {
+                break;
+            }   // end if: not all plain characters
+            long outBuff =   ( (long)p0 << 36 )
+                           | ( (long)p1 << 24 )
+                           | ( (long)p2 << 12 )
+                           | (       p3       );
+            destination[ d     ] = (byte)( outBuff >>> 40 );
+            destination[ d + 1 ] = (byte)( outBuff >>> 32 );
+            destination[ d + 2 ] = (byte)( outBuff >>> 24 );
+            destination[ d + 3 ] = (byte)( outBuff >>> 16 );
+            destination[ d + 4 ] = (byte)( outBuff >>>  8 );
+            destination[ d + 5 ] = (byte)( outBuff        );
+        }   // end for: each eight characters
+        return s - off;
+    }   // end decodeQuanta
+    
+    
+    /**
+     * As above, but between buffers, which may be direct. Indexes are
+     * absolute and the buffer positions are not changed.
+     *
+     * @param source the Base64 encoded data
+     * @param off the index where decoding begins
+     * @param len the number of characters available
+     * @param destination the buffer to hold the decoded bytes
+     * @param destOffset the index where output will be put
+     * @param table two-character table from getDecodeTable
+     * @return the number of characters decoded (a multiple of eight)
+     */
+    private static int decodeQuanta( java.nio.ByteBuffer source, int off, int len, java.nio.ByteBuffer destination, int destOffset, short[] table )
+    {
+        int s = off;
+        int d = destOffset;
+        int end = off + len - 7;
+        for( ; s < end; s += 8, d += 6 )
+        {
+            int p0 = table[ ( ( source.get( s     ) & 0xff ) << 8 ) | ( source.get( s + 1 ) & 0xff ) ];
+            int p1 = table[ ( ( source.get( s + 2 ) & 0xff ) << 8 ) | ( source.get( s + 3 ) & 0xff ) ];
+            int p2 = table[ ( ( source.get( s + 4 ) & 0xff ) << 8 ) | ( source.get( s + 5 ) & 0xff ) ];
+            int p3 = table[ ( ( source.get( s + 6 ) & 0xff ) << 8 ) | ( source.get( s + 7 ) & 0xff ) ];
+            if( ( p0 | p1 | p2 | p3 ) < 0 )
+            {
+                break;
+            }   // end if: not all plain characters
+            long outBuff =   ( (long)p0 << 36 )
+                           | ( (long)p1 << 24 )
+                           | ( (long)p2 << 12 )
+                           | (       p3       );
+            destination.put( d,     (byte)( outBuff >>> 40 ) );
+            destination.put( d + 1, (byte)( outBuff >>> 32 ) );
+            destination.put( d + 2, (byte)( outBuff >>> 24 ) );
+            destination.put( d + 3, (byte)( outBuff >>> 16 ) );
+            destination.put( d + 4, (byte)( outBuff >>>  8 ) );
+            destination.put( d + 5, (byte)( outBuff        ) );
+        }   // end for: each eight characters
+        return s - off;
+    }   // end decodeQuanta
+    
+    
     /**
      * Very low-level access to decoding ASCII characters in
      * the form of a byte array. Does not support automatically
@@ -871,46 +1444,15 @@ public class Base64
      */
     public static byte[] decode( byte[] source, int off, int len, int options )
     {
-		byte[] DECODABET = getDecodabet( options );
-	
         int    len34   = len * 3 / 4;
         byte[] outBuff = new byte[ len34 ]; // Upper limit on size of output
-        int    outBuffPosn = 0;
-        
-        byte[] b4        = new byte[4];
-        int    b4Posn    = 0;
-        int    i         = 0;
-        byte   sbiCrop   = 0;
-        byte   sbiDecode = 0;
-        for( i = off; i < off+len; i++ )
+        int    outBuffPosn = decodeTo( source, off, len, outBuff, null, 0, len34, options );
+        if( outBuffPosn < 0 )
         {
-            sbiCrop = (byte)(source[i] & 0x7f); // Only the low seven bits
-            sbiDecode = DECODABET[ sbiCrop ];
-            
-            if( sbiDecode >= WHITE_SPACE_ENC ) // White space, Equals sign or better
-            {
-                if( sbiDecode >= EQUALS_SIGN_ENC )
-                {
-                    b4[ b4Posn++ ] = sbiCrop;
-                    if( b4Posn > 3 )
-                    {
-                        outBuffPosn += decode4to3( b4, 0, outBuff, outBuffPosn, options );
-                        b4Posn = 0;
-                        
-                        // If that was the equals sign, break out of 'for' loop
-                        if( sbiCrop == EQUALS_SIGN )
-                            break;
-                    }   // end if: quartet built
-                    
-                }   // end if: equals sign or better
-                
-            }   // end if: white space, equals sign or better
-            else
-            {
-                System.err.println( "Bad Base64 input character at " + i + ": " + source[i] + "(decimal)" );
-                return null;
-            }   // end else: 
-        }   // each input character
+            int i = ~outBuffPosn;
+            System.err.println( "Bad Base64 input character at " + i + ": " + source[i] + "(decimal)" );
+            return null;
+        }   // end if: bad character
                                    
         byte[] out = new byte[ outBuffPosn ];
         System.arraycopy( outBuff, 0, out, 0, outBuffPosn ); 
@@ -918,62 +1460,362 @@ public class Base64
     }   // end decode
     
     
-	
-	
     /**
-     * Decodes data from Base64 notation, automatically
-     * detecting gzip-compressed data and decompressing it.
+     * Returns the exact number of bytes that decoding part of a byte array
+     * will produce. This means reading all the data, so in a loop it may be
+     * quicker to allow <code>len * 3 / 4</code>, which is always enough.
      *
-     * @param s the string to decode
-     * @return the decoded data
-     * @since 1.4
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param options Options (alphabet)
+     * @return Decoded length, or -1 if the data is not valid Base64
      */
-    public static byte[] decode( String s )
-	{
-		return decode( s, NO_OPTIONS );
-	}
+    public static int decodedLength( byte[] source, int off, int len, int options )
+    {
+        return Math.max( -1, decodeTo( source, off, len, null, null, 0, Integer.MAX_VALUE, options ) );
+    }   // end decodedLength
     
     
     /**
-     * Decodes data from Base64 notation, automatically
-     * detecting gzip-compressed data and decompressing it.
+     * Returns the exact number of bytes that decoding part of a string or
+     * other character sequence will produce; see above.
      *
-     * @param s the string to decode
-	 * @param options encode options such as URL_SAFE
-     * @return the decoded data
-     * @since 1.4
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param options Options (alphabet)
+     * @return Decoded length, or -1 if the data is not valid Base64
      */
-    public static byte[] decode( String s, int options )
-    {   
-        byte[] bytes;
-        try
-        {
-            bytes = s.getBytes( PREFERRED_ENCODING );
-        }   // end try
-        catch( java.io.UnsupportedEncodingException uee )
-        {
-            bytes = s.getBytes();
-        }   // end catch
-		//</change>
-        
-        // Decode
-        bytes = decode( bytes, 0, bytes.length, options );
-        
-        
-        // Check to see if it's gzip-compressed
-        // GZIP Magic Two-Byte Number: 0x8b1f (35615)
-        if( bytes != null && bytes.length >= 4 )
-        {
-            
-            int head = ((int)bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);       
-            if( java.util.zip.GZIPInputStream.GZIP_MAGIC == head ) 
-            {
-                java.io.ByteArrayInputStream  bais = null;
-                java.util.zip.GZIPInputStream gzis = null;
-                java.io.ByteArrayOutputStream baos = null;
-                byte[] buffer = new byte[2048];
-                int    length = 0;
-
+    public static int decodedLength( CharSequence source, int off, int len, int options )
+    {
+        return Math.max( -1, decodeTo( source, off, len, null, null, 0, Integer.MAX_VALUE, options ) );
+    }   // end decodedLength
+    
+    
+    /**
+     * Decodes part of a byte array into an existing array, without
+     * allocating anything. Does not support automatically gunzipping. The
+     * output is the same as {@link #decode(byte[], int, int, int)}.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Array to hold the decoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or -1 if the data is not valid Base64
+     * @throws IndexOutOfBoundsException If the decoded data won't fit
+     */
+    public static int decode( byte[] source, int off, int len, byte[] destination, int destOffset, int options )
+    {
+        checkRoom( destination.length, destOffset, 0 );
+        return Math.max( -1, decodeTo( source, off, len, destination, null, destOffset, destination.length, options ) );
+    }   // end decode
+    
+    
+    /**
+     * Decodes part of a string or other character sequence into an existing
+     * array, without copying the characters first. Characters above 127 are
+     * not valid. Otherwise the same as
+     * {@link #decode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Array to hold the decoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or -1 if the data is not valid Base64
+     * @throws IndexOutOfBoundsException If the decoded data won't fit
+     */
+    public static int decode( CharSequence source, int off, int len, byte[] destination, int destOffset, int options )
+    {
+        checkRoom( destination.length, destOffset, 0 );
+        return Math.max( -1, decodeTo( source, off, len, destination, null, destOffset, destination.length, options ) );
+    }   // end decode
+    
+    
+    /**
+     * Decodes part of a byte array into a buffer, starting at its position,
+     * which is moved on past the decoded data. Otherwise the same as
+     * {@link #decode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Buffer to hold the decoded data
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or -1 if the data is not valid Base64
+     * @throws java.nio.BufferOverflowException If the decoded data won't fit,
+     *   in which case nothing is written
+     */
+    public static int decode( byte[] source, int off, int len, java.nio.ByteBuffer destination, int options )
+    {
+        int pos = destination.position();
+        if( (long)len * 3 / 4 > destination.remaining() )
+        {
+            // Might not fit, so find out exactly before writing anything
+            int length = decodedLength( source, off, len, options );
+            if( length < 0 )
+                return -1;
+            if( length > destination.remaining() )
+                throw new java.nio.BufferOverflowException();
+        }   // end if: might not fit
+        
+        int written;
+        if( destination.hasArray() )
+        {
+            int start = destination.arrayOffset() + pos;
+            written = decodeTo( source, off, len, destination.array(), null,
+                start, destination.arrayOffset() + destination.limit(), options );
+        }   // end if: heap buffer
+        else
+        {
+            written = decodeTo( source, off, len, null, destination, pos, destination.limit(), options );
+        }   // end else: direct buffer
+        if( written < 0 )
+            return -1;
+        destination.position( pos + written );
+        return written;
+    }   // end decode
+    
+    
+    /**
+     * Decodes part of a byte array. Output goes to <var>destination</var> if
+     * it is not null, otherwise to <var>buffer</var> (using absolute indexes)
+     * if that is not null; if both are null the output is only counted.
+     * Bytes are cropped to seven bits as they always have been here.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Array for output, or null
+     * @param buffer Buffer for output, or null
+     * @param destOffset Index where output should begin
+     * @param destEnd Index after the last one that can be written
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or the complement (~) of the index of
+     *   the first bad character
+     * @throws IndexOutOfBoundsException If the output reaches destEnd
+     */
+    private static int decodeTo( byte[] source, int off, int len,
+     byte[] destination, java.nio.ByteBuffer buffer, int destOffset, int destEnd, int options )
+    {
+		byte[] DECODABET = getDecodabet( options );
+		short[] table = destination != null ? getDecodeTable( options ) : null;
+		
+        int end         = off + len;
+        int outBuffPosn = destOffset;
+        int quartet     = 0;
+        int b4Posn      = 0;
+        for( int i = off; i < end; i++ )
+        {
+            // Between quartets, take the fast path as far as it goes
+            if( b4Posn == 0 && table != null )
+            {
+                int room = ( destEnd - outBuffPosn ) / 6 * 8;
+                int fast = decodeQuanta( source, i, Math.min( end - i, room ), destination, outBuffPosn, table );
+                i += fast;
+                outBuffPosn += fast / 4 * 3;
+                if( i == end )
+                    break;
+            }   // end if: between quartets
+            
+            int sbiCrop = source[i] & 0x7f; // Only the low seven bits
+            if( sbiCrop >= DECODABET.length || DECODABET[ sbiCrop ] < WHITE_SPACE_ENC )
+                return ~i;
+            
+            if( DECODABET[ sbiCrop ] >= EQUALS_SIGN_ENC )
+            {
+                quartet = ( quartet << 8 ) | sbiCrop;
+                if( ++b4Posn > 3 )
+                {
+                    outBuffPosn = putQuartet( quartet, DECODABET, destination, buffer, outBuffPosn, destEnd );
+                    b4Posn = 0;
+                    
+                    // If that was the equals sign, break out of 'for' loop
+                    if( sbiCrop == EQUALS_SIGN )
+                        break;
+                }   // end if: quartet built
+            }   // end if: equals sign or better
+        }   // each input character
+        return outBuffPosn - destOffset;
+    }   // end decodeTo
+    
+    
+    /**
+     * As above, but decoding from a character sequence. Characters above
+     * 127 are bad rather than cropped.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Array for output, or null
+     * @param buffer Buffer for output, or null
+     * @param destOffset Index where output should begin
+     * @param destEnd Index after the last one that can be written
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or the complement (~) of the index of
+     *   the first bad character
+     * @throws IndexOutOfBoundsException If the output reaches destEnd
+     */
+    private static int decodeTo( CharSequence source, int off, int len,
+     byte[] destination, java.nio.ByteBuffer buffer, int destOffset, int destEnd, int options )
+    {
+		byte[] DECODABET = getDecodabet( options );
+		short[] table = destination != null ? getDecodeTable( options ) : null;
+		
+        int end         = off + len;
+        int outBuffPosn = destOffset;
+        int quartet     = 0;
+        int b4Posn      = 0;
+        for( int i = off; i < end; i++ )
+        {
+            // Between quartets, take the fast path as far as it goes
+            if( b4Posn == 0 && table != null )
+            {
+                int room = ( destEnd - outBuffPosn ) / 6 * 8;
+                int fast = decodeQuanta( source, i, Math.min( end - i, room ), destination, outBuffPosn, table );
+                i += fast;
+                outBuffPosn += fast / 4 * 3;
+                if( i == end )
+                    break;
+            }   // end if: between quartets
+            
+            int c = source.charAt( i );
+            if( c >= DECODABET.length || DECODABET[ c ] < WHITE_SPACE_ENC )
+                return ~i;
+            
+            if( DECODABET[ c ] >= EQUALS_SIGN_ENC )
+            {
+                quartet = ( quartet << 8 ) | c;
+                if( ++b4Posn > 3 )
+                {
+                    outBuffPosn = putQuartet( quartet, DECODABET, destination, buffer, outBuffPosn, destEnd );
+                    b4Posn = 0;
+                    
+                    // If that was the equals sign, break out of 'for' loop
+                    if( c == EQUALS_SIGN )
+                        break;
+                }   // end if: quartet built
+            }   // end if: equals sign or better
+        }   // each input character
+        return outBuffPosn - destOffset;
+    }   // end decodeTo
+    
+    
+    /**
+     * Decodes four characters, packed into an int with the first in the top
+     * byte, in the same way as decode4to3.
+     *
+     * @param quartet Four characters
+     * @param DECODABET the decodabet for the alphabet in use
+     * @param destination Array for output, or null
+     * @param buffer Buffer for output, or null
+     * @param destOffset Index where output should go
+     * @param destEnd Index after the last one that can be written
+     * @return Index after the output
+     * @throws IndexOutOfBoundsException If the output would reach destEnd
+     */
+    private static int putQuartet( int quartet, byte[] DECODABET,
+     byte[] destination, java.nio.ByteBuffer buffer, int destOffset, int destEnd )
+    {
+        int outBuff =   ( ( DECODABET[ ( quartet >>> 24 )        ] & 0xFF ) << 18 )
+                      | ( ( DECODABET[ ( quartet >>> 16 ) & 0xff ] & 0xFF ) << 12 )
+                      | ( ( DECODABET[ ( quartet >>>  8 ) & 0xff ] & 0xFF ) <<  6 )
+                      | ( ( DECODABET[ ( quartet        ) & 0xff ] & 0xFF )       );
+        
+        // Example: Dk== gives one byte, DkL= two and DkLE three
+        int length = ( ( quartet >>> 8 ) & 0xff ) == EQUALS_SIGN ? 1
+            : ( quartet & 0xff ) == EQUALS_SIGN ? 2 : 3;
+        if( destination == null && buffer == null )
+            return destOffset + length;
+        if( length > destEnd - destOffset )
+            throw new IndexOutOfBoundsException( "No room for decoded data at " + destOffset );
+        
+        if( destination != null )
+        {
+            destination[ destOffset ] = (byte)( outBuff >>> 16 );
+            if( length > 1 ) destination[ destOffset + 1 ] = (byte)( outBuff >>> 8 );
+            if( length > 2 ) destination[ destOffset + 2 ] = (byte)( outBuff       );
+        }   // end if: array
+        else
+        {
+            buffer.put( destOffset, (byte)( outBuff >>> 16 ) );
+            if( length > 1 ) buffer.put( destOffset + 1, (byte)( outBuff >>> 8 ) );
+            if( length > 2 ) buffer.put( destOffset + 2, (byte)( outBuff       ) );
+        }   // end else: buffer
+        return destOffset + length;
+    }   // end putQuartet
+    
+    
+	
+	
+    /**
+     * Decodes data from Base64 notation, automatically
+     * detecting gzip-compressed data and decompressing it.
+     *
+     * @param s the string to decode
+     * @return the decoded data
+     * @since 1.4
+     */
+    public static byte[] decode( String s )
+	{
+		return decode( s, NO_OPTIONS );
+	}
+    
+    
+    /**
+     * Decodes data from Base64 notation, automatically
+     * detecting gzip-compressed data and decompressing it.
+     *
+     * @param s the string to decode
+	 * @param options encode options such as URL_SAFE
+     * @return the decoded data
+     * @since 1.4
+     */
+    public static byte[] decode( String s, int options )
+    {   
+        // Decode straight from the characters
+        byte[] bytes = new byte[ s.length() * 3 / 4 ];
+        int written = decodeTo( s, 0, s.length(), bytes, null, 0, bytes.length, options );
+        if( written >= 0 )
+        {
+            byte[] out = new byte[ written ];
+            System.arraycopy( bytes, 0, out, 0, written );
+            bytes = out;
+        }   // end if: decoded
+        else
+        {
+            // Bad character; decode the encoded bytes so that it is reported
+            // at the same index as it always has been
+            try
+            {
+                bytes = s.getBytes( PREFERRED_ENCODING );
+            }   // end try
+            catch( java.io.UnsupportedEncodingException uee )
+            {
+                bytes = s.getBytes();
+            }   // end catch
+            bytes = decode( bytes, 0, bytes.length, options );
+        }   // end else: bad character
+        
+        
+        // Check to see if it's gzip-compressed
+        // GZIP Magic Two-Byte Number: 0x8b1f (35615)
+        if( bytes != null && bytes.length >= 4 )
+        {
+            
+            int head = ((int)bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);       
+            if( java.util.zip.GZIPInputStream.GZIP_MAGIC == head ) 
+            {
+                java.io.ByteArrayInputStream  bais = null;
+                java.util.zip.GZIPInputStream gzis = null;
+                java.io.ByteArrayOutputStream baos = null;
+                byte[] buffer = new byte[2048];
+                int    length = 0;
+
                 try
                 {
                     baos = new java.io.ByteArrayOutputStream();
@@ -1135,14 +1977,9 @@ public class Base64
     public static byte[] decodeFromFile( String filename )
     {
         byte[] decodedData = null;
-        Base64.InputStream bis = null;
         try
         {
-            // Set up some useful variables
             java.io.File file = new java.io.File( filename );
-            byte[] buffer = null;
-            int length   = 0;
-            int numBytes = 0;
             
             // Check for size of file
             if( file.length() > Integer.MAX_VALUE )
@@ -1150,30 +1987,20 @@ public class Base64
                 System.err.println( "File is too big for this convenience method (" + file.length() + " bytes)." );
                 return null;
             }   // end if: file too big for int index
-            buffer = new byte[ (int)file.length() ];
-            
-            // Open a stream
-            bis = new Base64.InputStream( 
-                      new java.io.BufferedInputStream( 
-                      new java.io.FileInputStream( file ) ), Base64.DECODE );
             
-            // Read until done
-            while( ( numBytes = bis.read( buffer, length, 4096 ) ) >= 0 )
-                length += numBytes;
+            // Upper limit on size of output
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate( (int)( file.length() / 4 * 3 ) );
+            transcodeFile( file, buffer, null, DECODE );
             
             // Save in a variable to return
-            decodedData = new byte[ length ];
-            System.arraycopy( buffer, 0, decodedData, 0, length );
+            decodedData = new byte[ buffer.position() ];
+            System.arraycopy( buffer.array(), 0, decodedData, 0, buffer.position() );
             
         }   // end try
         catch( java.io.IOException e )
         {
             System.err.println( "Error decoding from file " + filename );
         }   // end catch: IOException
-        finally
-        {
-            try{ bis.close(); } catch( Exception e) {}
-        }   // end finally
         
         return decodedData;
     }   // end decodeFromFile
@@ -1192,36 +2019,25 @@ public class Base64
     public static String encodeFromFile( String filename )
     {
         String encodedData = null;
-        Base64.InputStream bis = null;
         try
         {
-            // Set up some useful variables
             java.io.File file = new java.io.File( filename );
-            byte[] buffer = new byte[ Math.max((int)(file.length() * 1.4),40) ]; // Need max() for math on small files (v2.2.1)
-            int length   = 0;
-            int numBytes = 0;
-            
-            // Open a stream
-            bis = new Base64.InputStream( 
-                      new java.io.BufferedInputStream( 
-                      new java.io.FileInputStream( file ) ), Base64.ENCODE );
-            
-            // Read until done
-            while( ( numBytes = bis.read( buffer, length, 4096 ) ) >= 0 )
-                length += numBytes;
+            long length = encodedLength( file.length(), NO_OPTIONS );
+            if( length > Integer.MAX_VALUE )
+            {
+                System.err.println( "File is too big for this convenience method (" + file.length() + " bytes)." );
+                return null;
+            }   // end if: too big for a string
             
-            // Save in a variable to return
-            encodedData = new String( buffer, 0, length, Base64.PREFERRED_ENCODING );
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate( (int)length );
+            transcodeFile( file, buffer, null, ENCODE );
+            encodedData = new String( buffer.array(), 0, buffer.position(), Base64.PREFERRED_ENCODING );
                 
         }   // end try
         catch( java.io.IOException e )
         {
             System.err.println( "Error encoding from file " + filename );
         }   // end catch: IOException
-        finally
-        {
-            try{ bis.close(); } catch( Exception e) {}
-        }   // end finally
         
         return encodedData;
         }   // end encodeFromFile
@@ -1235,20 +2051,12 @@ public class Base64
      */
     public static void encodeFileToFile( String infile, String outfile )
     {
-        String encoded = Base64.encodeFromFile( infile );
-        java.io.OutputStream out = null;
         try{
-            out = new java.io.BufferedOutputStream(
-                  new java.io.FileOutputStream( outfile ) );
-            out.write( encoded.getBytes("US-ASCII") ); // Strict, 7-bit output.
+            encodeFileToFile( new java.io.File( infile ), new java.io.File( outfile ), NO_OPTIONS );
         }   // end try
         catch( java.io.IOException ex ) {
             ex.printStackTrace();
         }   // end catch
-        finally {
-            try { out.close(); }
-            catch( Exception ex ){}
-        }   // end finally    
     }   // end encodeFileToFile
 
 
@@ -1261,23 +2069,503 @@ public class Base64
      */
     public static void decodeFileToFile( String infile, String outfile )
     {
-        byte[] decoded = Base64.decodeFromFile( infile );
-        java.io.OutputStream out = null;
         try{
-            out = new java.io.BufferedOutputStream(
-                  new java.io.FileOutputStream( outfile ) );
-            out.write( decoded );
+            decodeFileToFile( new java.io.File( infile ), new java.io.File( outfile ), NO_OPTIONS );
         }   // end try
         catch( java.io.IOException ex ) {
             ex.printStackTrace();
         }   // end catch
-        finally {
-            try { out.close(); }
-            catch( Exception ex ){}
-        }   // end finally    
     }   // end decodeFileToFile
     
     
+    /**
+     * Reads <tt>infile</tt> and encodes it to <tt>outfile</tt>, using a
+     * fixed amount of memory however big the file is. The input is mapped
+     * into memory a window at a time and encoded into a buffer that is
+     * written to the output file's channel whenever it fills. As with
+     * {@link Base64.InputStream}, there is no line break at the very end.
+     *
+     * @param infile Input file
+     * @param outfile Output file
+     * @param options Specified options (DONT_BREAK_LINES and alphabet)
+     * @return Number of bytes written
+     * @throws java.io.IOException If either file can't be read or written
+     */
+    public static long encodeFileToFile( java.io.File infile, java.io.File outfile, int options ) throws java.io.IOException
+    {
+        java.io.FileOutputStream out = new java.io.FileOutputStream( outfile );
+        try
+        {
+            return transcodeFile( infile, java.nio.ByteBuffer.allocateDirect( BLOCK_SIZE * 8 ),
+                out.getChannel(), ( options & ~GZIP ) | ENCODE );
+        }   // end try
+        finally
+        {
+            out.close();
+        }   // end finally
+    }   // end encodeFileToFile
+    
+    
+    /**
+     * Reads <tt>infile</tt> and decodes it to <tt>outfile</tt>, using a
+     * fixed amount of memory however big the file is; see
+     * {@link #encodeFileToFile(java.io.File, java.io.File, int)}. As with
+     * {@link Base64.InputStream}, characters that aren't Base64 are skipped,
+     * decoding stops after the final padding, and an incomplete quartet at
+     * the end is an error (everything before it is still written).
+     *
+     * @param infile Input file
+     * @param outfile Output file
+     * @param options Alphabet (URL_SAFE or ORDERED) or NO_OPTIONS
+     * @return Number of bytes written
+     * @throws java.io.IOException If either file can't be read or written
+     */
+    public static long decodeFileToFile( java.io.File infile, java.io.File outfile, int options ) throws java.io.IOException
+    {
+        java.io.FileOutputStream out = new java.io.FileOutputStream( outfile );
+        try
+        {
+            return transcodeFile( infile, java.nio.ByteBuffer.allocateDirect( BLOCK_SIZE * 8 ),
+                out.getChannel(), options & ~( GZIP | ENCODE ) );
+        }   // end try
+        finally
+        {
+            out.close();
+        }   // end finally
+    }   // end decodeFileToFile
+    
+    
+    /**
+     * Encodes or decodes a file through a {@link Base64.Encoder} or
+     * {@link Base64.Decoder}, mapping it into memory a window at a time.
+     * Output goes into <var>buffer</var>, which is written to
+     * <var>channel</var> whenever it fills and at the end. If
+     * <var>channel</var> is null the output is left in <var>buffer</var>,
+     * which must be big enough.
+     *
+     * @param infile Input file
+     * @param buffer Buffer for output
+     * @param channel Channel for output, or null
+     * @param options Specified options, including ENCODE or DECODE
+     * @return Number of bytes output
+     * @throws java.io.IOException If there's an I/O error
+     */
+    private static long transcodeFile( java.io.File infile, java.nio.ByteBuffer buffer,
+     java.nio.channels.WritableByteChannel channel, int options ) throws java.io.IOException
+    {
+        boolean encode  = ( options & ENCODE ) == ENCODE;
+        Encoder encoder = encode ? new Encoder( options ) : null;
+        Decoder decoder = encode ? null : new Decoder( options );
+        
+        long total = 0;
+        long size;
+        java.io.FileInputStream fis = new java.io.FileInputStream( infile );
+        try
+        {
+            java.nio.channels.FileChannel in = fis.getChannel();
+            size = in.size();
+            long pos = 0;
+            boolean last = false;
+            while( !last )
+            {
+                long window = Math.min( MAPPED_WINDOW_SIZE, size - pos );
+                last = pos + window == size;
+                java.nio.MappedByteBuffer mapped = in.map( java.nio.channels.FileChannel.MapMode.READ_ONLY, pos, window );
+                while( true )
+                {
+                    // The decoder is never told the input has ended, so that
+                    // a partial quartet is kept for the check below
+                    java.nio.charset.CoderResult result = encode
+                        ? encoder.encode( mapped, buffer, last )
+                        : decoder.decode( mapped, buffer, false );
+                    if( result.isOverflow() )
+                        total += drain( buffer, channel );
+                    else if( result.isMalformed() )
+                        mapped.position( mapped.position() + 1 ); // Skipped, as Base64.InputStream does
+                    else
+                        break;
+                }   // end while: window not done
+                
+                if( decoder != null && decoder.isFinished() )
+                    break;
+                
+                // Any partial quantum is mapped again with the next window
+                pos += mapped.position();
+            }   // end while: each window
+        }   // end try
+        finally
+        {
+            fis.close();
+        }   // end finally
+        
+        if( decoder != null && decoder.b4Posn > 0 )
+        {
+            // Write out what was decoded, as Base64.InputStream would have
+            if( channel != null )
+                drain( buffer, channel );
+            throw new java.io.IOException( "Improperly padded Base64 input." );
+        }   // end if: partial quartet
+        
+        // The encoder puts a break after a full last line; the stream doesn't
+        int lineBytes = MAX_LINE_LENGTH / 4 * 3;
+        if( encode && ( options & DONT_BREAK_LINES ) == 0 && size > 0 && size % lineBytes == 0 )
+            buffer.position( buffer.position() - 1 );
+        
+        if( channel == null )
+            return buffer.position();
+        return total + drain( buffer, channel );
+    }   // end transcodeFile
+    
+    
+    /**
+     * Writes the contents of a buffer to a channel and clears it.
+     *
+     * @param buffer Buffer, ready for more data
+     * @param channel Channel, or null if the buffer should never fill
+     * @return Number of bytes written
+     * @throws java.io.IOException If there's an I/O error, or no channel
+     */
+    private static int drain( java.nio.ByteBuffer buffer, java.nio.channels.WritableByteChannel channel ) throws java.io.IOException
+    {
+        if( channel == null )
+            throw new java.io.IOException( "File changed while it was being read" );
+        
+        buffer.flip();
+        int length = buffer.remaining();
+        while( buffer.hasRemaining() )
+            channel.write( buffer );
+        buffer.clear();
+        return length;
+    }   // end drain
+    
+    
+    
+/* ********  P A R A L L E L   M E T H O D S  ******** */
+    
+    
+    /**
+     * Encodes part of a byte array into Base64 notation using all the
+     * cores, via the common <tt>ForkJoinPool</tt>. The data is cut into
+     * pieces of whole lines (57 bytes each), whose place in the output is
+     * known in advance, so each piece is encoded straight into its place in
+     * <var>destination</var>. Small inputs are encoded on the calling thread.
+     * Otherwise the same as {@link #encode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination Array to hold the encoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Specified options (DONT_BREAK_LINES and alphabet)
+     * @return Number of bytes written
+     * @throws IndexOutOfBoundsException If the encoded data won't fit
+     */
+    public static int encodeParallel( byte[] source, int off, int len, byte[] destination, int destOffset, int options )
+    {
+        int pieces = pieces( len );
+        if( pieces < 2 )
+            return encode( source, off, len, destination, destOffset, options );
+        
+        int length = encodedLength( len, options );
+        checkRoom( destination.length, destOffset, length );
+        int lineBytes = MAX_LINE_LENGTH / 4 * 3;
+        int pieceSize = ( len / pieces + lineBytes - 1 ) / lineBytes * lineBytes;
+        java.util.List<Piece> tasks = new java.util.ArrayList<Piece>();
+        for( int start = 0; start < len; start += pieceSize )
+        {
+            tasks.add( new Piece( Piece.ENCODE, source, off + start, Math.min( pieceSize, len - start ),
+                destination, destOffset + (int)encodedLength( (long)start, options ), 0, options ) );
+        }   // end for: each piece
+        java.util.concurrent.ForkJoinTask.invokeAll( tasks );
+        return length;
+    }   // end encodeParallel
+    
+    
+    /**
+     * Encodes part of a byte array into Base64 notation using all the
+     * cores; see {@link #encodeParallel(byte[], int, int, byte[], int, int)}.
+     * The GZIP option is not run in parallel.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param options Specified options
+     * @return Encoded data
+     * @see Base64#encodeBytes(byte[], int, int, int)
+     */
+    public static String encodeBytesParallel( byte[] source, int off, int len, int options )
+    {
+        if( ( options & GZIP ) == GZIP )
+            return encodeBytes( source, off, len, options );
+        
+        byte[] outBuff = new byte[ encodedLength( len, options ) ];
+        int e = encodeParallel( source, off, len, outBuff, 0, options );
+        
+        // Return value according to relevant encoding.
+        try
+        {
+            return new String( outBuff, 0, e, PREFERRED_ENCODING );
+        }   // end try
+        catch (java.io.UnsupportedEncodingException uue)
+        {
+            return new String( outBuff, 0, e );
+        }   // end catch
+    }   // end encodeBytesParallel
+    
+    
+    /**
+     * Decodes part of a byte array using all the cores, via the common
+     * <tt>ForkJoinPool</tt>. Because white space can be anywhere, the
+     * characters are counted in parallel first; that gives each piece a
+     * starting point on a four-character boundary and a known place in the
+     * output. Each piece is then decoded straight into
+     * <var>destination</var>. Small inputs, and anything unusual (bad
+     * characters, equals signs before the end, or a partial quartet at the
+     * end), are decoded on the calling thread. Otherwise the same as
+     * {@link #decode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination Array to hold the decoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param options Options (alphabet)
+     * @return Number of bytes written, or -1 if the data is not valid Base64
+     * @throws IndexOutOfBoundsException If the decoded data won't fit
+     */
+    public static int decodeParallel( byte[] source, int off, int len, byte[] destination, int destOffset, int options )
+    {
+        Piece[] counts = countPieces( source, off, len, options );
+        int length = counts == null ? -1 : decodedLength( counts );
+        if( length < 0 )
+            return decode( source, off, len, destination, destOffset, options );
+        
+        checkRoom( destination.length, destOffset, length );
+        decodePieces( counts, destination, destOffset, destOffset + length );
+        return length;
+    }   // end decodeParallel
+    
+    
+    /**
+     * Decodes part of a byte array using all the cores; see
+     * {@link #decodeParallel(byte[], int, int, byte[], int, int)}.
+     * Does not support automatically gunzipping.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param options Options (alphabet)
+     * @return decoded data, or null if it is not valid Base64
+     * @see Base64#decode(byte[], int, int, int)
+     */
+    public static byte[] decodeParallel( byte[] source, int off, int len, int options )
+    {
+        Piece[] counts = countPieces( source, off, len, options );
+        int length = counts == null ? -1 : decodedLength( counts );
+        if( length < 0 )
+            return decode( source, off, len, options );
+        
+        byte[] out = new byte[ length ];
+        decodePieces( counts, out, 0, length );
+        return out;
+    }   // end decodeParallel
+    
+    
+    /**
+     * Works out how many pieces to split data into.
+     *
+     * @param len Length of data
+     * @return Number of pieces; 1 means don't bother
+     */
+    private static int pieces( int len )
+    {
+        // The calling thread helps, so one pool thread is enough to gain
+        if( Runtime.getRuntime().availableProcessors() < 2 )
+            return 1;
+        int parallelism = java.util.concurrent.ForkJoinPool.getCommonPoolParallelism();
+        return Math.max( 1, Math.min( len / MIN_PIECE_SIZE, parallelism * 4 ) );
+    }   // end pieces
+    
+    
+    /**
+     * Counts the meaningful characters in Base64 data, a piece per thread.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param options Options (alphabet)
+     * @return Counted pieces, or null if the data is too small to split
+     */
+    private static Piece[] countPieces( byte[] source, int off, int len, int options )
+    {
+        int pieces = pieces( len );
+        if( pieces < 2 )
+            return null;
+        
+        Piece[] counts = new Piece[ pieces ];
+        int pieceSize = ( len + pieces - 1 ) / pieces;
+        for( int i = 0; i < pieces; i++ )
+        {
+            int start = Math.min( len, i * pieceSize );
+            counts[ i ] = new Piece( Piece.COUNT, source, off + start, Math.min( pieceSize, len - start ),
+                null, 0, 0, options );
+        }   // end for: each piece
+        java.util.concurrent.ForkJoinTask.invokeAll( counts );
+        return counts;
+    }   // end countPieces
+    
+    
+    /**
+     * Works out the decoded length from counted pieces, and sets each
+     * piece's place in the output.
+     *
+     * @param counts Counted pieces
+     * @return Decoded length, or -1 if the data must be decoded on one
+     *   thread to get the usual handling of bad or odd input
+     */
+    private static int decodedLength( Piece[] counts )
+    {
+        long total = 0;
+        long equals = -1;
+        for( int i = 0; i < counts.length; i++ )
+        {
+            if( counts[ i ].bad )
+                return -1;
+            if( equals < 0 && counts[ i ].firstEquals >= 0 )
+                equals = total + counts[ i ].firstEquals;
+            counts[ i ].before = total;
+            total += counts[ i ].count;
+        }   // end for: each piece
+        
+        // Equals signs are only simple in the last two places
+        if( total % 4 != 0 || ( equals >= 0 && equals < total - 2 ) )
+            return -1;
+        return (int)( total / 4 * 3 - ( equals < 0 ? 0 : equals == total - 2 ? 2 : 1 ) );
+    }   // end decodedLength
+    
+    
+    /**
+     * Decodes counted pieces in parallel. Each piece first moves its start
+     * forward to the next four-character boundary.
+     *
+     * @param counts Counted pieces, from decodedLength
+     * @param destination Array to hold the decoded data
+     * @param destOffset Offset in destination where output should begin
+     * @param destEnd Offset after the end of the decoded data
+     */
+    private static void decodePieces( Piece[] counts, byte[] destination, int destOffset, int destEnd )
+    {
+        byte[] DECODABET = getDecodabet( counts[ 0 ].options );
+        int end = counts[ counts.length - 1 ].off + counts[ counts.length - 1 ].len;
+        int[] starts = new int[ counts.length + 1 ];
+        long[] chars = new long[ counts.length + 1 ];
+        for( int i = 0; i < counts.length; i++ )
+        {
+            int start = counts[ i ].off;
+            long counted = counts[ i ].before;
+            while( counted % 4 != 0 && start < end )
+            {
+                if( DECODABET[ counts[ i ].source[ start++ ] & 0x7f ] >= EQUALS_SIGN_ENC )
+                    counted++;
+            }   // end while: not on a boundary
+            starts[ i ] = start;
+            chars[ i ] = counted;
+        }   // end for: each piece
+        starts[ counts.length ] = end;
+        chars[ counts.length ] = -1;
+        
+        java.util.List<Piece> tasks = new java.util.ArrayList<Piece>();
+        for( int i = 0; i < counts.length; i++ )
+        {
+            if( starts[ i + 1 ] > starts[ i ] )
+            {
+                int pieceOffset = destOffset + (int)( chars[ i ] / 4 * 3 );
+                int pieceEnd = i + 1 < counts.length ? destOffset + (int)( chars[ i + 1 ] / 4 * 3 ) : destEnd;
+                tasks.add( new Piece( Piece.DECODE, counts[ i ].source, starts[ i ], starts[ i + 1 ] - starts[ i ],
+                    destination, pieceOffset, pieceEnd, counts[ i ].options ) );
+            }   // end if: not empty
+        }   // end for: each piece
+        java.util.concurrent.ForkJoinTask.invokeAll( tasks );
+    }   // end decodePieces
+    
+    
+    /**
+     * One piece of work for the parallel methods.
+     */
+    private static class Piece extends java.util.concurrent.RecursiveAction
+    {
+        private final static long serialVersionUID = 1L;
+        
+        private final static int ENCODE = 0, COUNT = 1, DECODE = 2;
+        
+        private int     kind;
+        private byte[]  source;
+        private int     off;
+        private int     len;
+        private byte[]  destination;
+        private int     destOffset;
+        private int     destEnd;
+        private int     options;
+        
+        // Results of COUNT
+        private int     count;              // Number of meaningful characters
+        private int     firstEquals = -1;   // Index of first equals sign among them
+        private boolean bad;                // Contains a bad character
+        private long    before;             // Meaningful characters in earlier pieces
+        
+        Piece( int kind, byte[] source, int off, int len,
+         byte[] destination, int destOffset, int destEnd, int options )
+        {
+            this.kind        = kind;
+            this.source      = source;
+            this.off         = off;
+            this.len         = len;
+            this.destination = destination;
+            this.destOffset  = destOffset;
+            this.destEnd     = destEnd;
+            this.options     = options;
+        }   // end constructor
+        
+        @Override
+        protected void compute()
+        {
+            switch( kind )
+            {
+                case ENCODE:
+                    encode( source, off, len, destination, destOffset, options );
+                    break;
+                    
+                case COUNT:
+                    byte[] DECODABET = getDecodabet( options );
+                    for( int i = off; i < off + len; i++ )
+                    {
+                        int sbiCrop = source[ i ] & 0x7f;
+                        if( sbiCrop >= DECODABET.length || DECODABET[ sbiCrop ] < WHITE_SPACE_ENC )
+                        {
+                            bad = true;
+                            return;
+                        }   // end if: bad character
+                        if( DECODABET[ sbiCrop ] >= EQUALS_SIGN_ENC )
+                        {
+                            if( sbiCrop == EQUALS_SIGN && firstEquals < 0 )
+                                firstEquals = count;
+                            count++;
+                        }   // end if: meaningful
+                    }   // end for: each character
+                    break;
+                    
+                case DECODE:
+                    decodeTo( source, off, len, destination, null, destOffset, destEnd, options );
+                    break;
+                    
+                default:
+                    throw new IllegalStateException();
+            }   // end switch
+        }   // end compute
+        
+    }   // end inner class Piece
+    
+    
     /* ********  I N N E R   C L A S S   I N P U T S T R E A M  ******** */
     
     
@@ -1293,14 +2581,21 @@ public class Base64
     public static class InputStream extends java.io.FilterInputStream
     {
         private boolean encode;         // Encoding or decoding
+        private byte[]  inBuff;         // Block read from the underlying stream
+        private int     inPosn;         // Next byte in inBuff to convert
+        private int     inLength;       // Number of bytes in inBuff
+        private boolean endOfInput;     // Underlying stream has ended
         private int     position;       // Current position in the buffer
-        private byte[]  buffer;         // Small buffer holding converted data
-        private int     bufferLength;   // Length of buffer (3 or 4)
+        private byte[]  buffer;         // Block holding converted data
         private int     numSigBytes;    // Number of meaningful bytes in the buffer
         private int     lineLength;
         private boolean breakLines;     // Break lines at less than 80 characters
+        private byte[]  b4;             // Partial quartet when decoding
+        private int     b4Posn;         // Number of characters in b4
+        private boolean padded;         // Decoded a padded quartet, so that's the end
 		private int     options;        // Record options used to create the stream.
 		private byte[]  decodabet;		// Local copies to avoid extra method calls
+		private short[] decodeTable;
         
         
         /**
@@ -1341,9 +2636,17 @@ public class Base64
             super( in );
             this.breakLines   = (options & DONT_BREAK_LINES) != DONT_BREAK_LINES;
             this.encode       = (options & ENCODE) == ENCODE;
-            this.bufferLength = encode ? 4 : 3;
-            this.buffer       = new byte[ bufferLength ];
-            this.position     = -1;
+            this.inBuff       = new byte[ BLOCK_SIZE ];
+            if( encode )
+            {
+                int chars = ( BLOCK_SIZE / 3 + 1 ) * 4;
+                this.buffer   = new byte[ chars + chars / MAX_LINE_LENGTH + 1 ];
+            }   // end if: encoding
+            else
+            {
+                this.buffer   = new byte[ BLOCK_SIZE / 4 * 3 + 3 ];
+                this.b4       = new byte[ 4 ];
+            }   // end else: decoding
             this.lineLength   = 0;
 			this.options      = options; // Record for later, mostly to determine which alphabet to use
 			this.decodabet    = getDecodabet(options);
@@ -1351,130 +2654,24 @@ public class Base64
         
         /**
          * Reads enough of the input stream to convert
-         * to/from Base64 and returns the next byte.
-         *
-         * @return next byte
-         * @since 1.3
-         */
-        @Override
-				public int read() throws java.io.IOException 
-        { 
-            // Do we need to get data?
-            if( position < 0 )
-            {
-                if( encode )
-                {
-                    byte[] b3 = new byte[3];
-                    int numBinaryBytes = 0;
-                    for( int i = 0; i < 3; i++ )
-                    {
-                        try
-                        { 
-                            int b = in.read();
-                            
-                            // If end of stream, b is -1.
-                            if( b >= 0 )
-                            {
-                                b3[i] = (byte)b;
-                                numBinaryBytes++;
-                            }   // end if: not end of stream
-                            
-                        }   // end try: read
-                        catch( java.io.IOException e )
-                        {   
-                            // Only a problem if we got no data at all.
-                            if( i == 0 )
-                                throw e;
-                            
-                        }   // end catch
-                    }   // end for: each needed input byte
-                    
-                    if( numBinaryBytes > 0 )
-                    {
-                        encode3to4( b3, 0, numBinaryBytes, buffer, 0, options );
-                        position = 0;
-                        numSigBytes = 4;
-                    }   // end if: got data
-                    else
-                    {
-                        return -1;
-                    }   // end else
-                }   // end if: encoding
-                
-                // Else decoding
-                else
-                {
-                    byte[] b4 = new byte[4];
-                    int i = 0;
-                    for( i = 0; i < 4; i++ )
-                    {
-                        // Read four "meaningful" bytes:
-                        int b = 0;
-                        do{ b = in.read(); }
-                        while( b >= 0 && decodabet[ b & 0x7f ] <= WHITE_SPACE_ENC );
-                        
-                        if( b < 0 )
-                            break; // Reads a -1 if end of stream
-                        
-                        b4[i] = (byte)b;
-                    }   // end for: each needed input byte
-                    
-                    if( i == 4 )
-                    {
-                        numSigBytes = decode4to3( b4, 0, buffer, 0, options );
-                        position = 0;
-                    }   // end if: got four characters
-                    else if( i == 0 ){
-                        return -1;
-                    }   // end else if: also padded correctly
-                    else
-                    {
-                        // Must have broken out from above.
-                        throw new java.io.IOException( "Improperly padded Base64 input." );
-                    }   // end 
-                    
-                }   // end else: decode
-            }   // end else: get data
-            
-            // Got data?
-            if( position >= 0 )
-            {
-                // End of relevant data?
-                if( /*!encode &&*/ position >= numSigBytes )
-                    return -1;
-                
-                if( encode && breakLines && lineLength >= MAX_LINE_LENGTH )
-                {
-                    lineLength = 0;
-                    return '\n';
-                }   // end if
-                else
-                {
-                    lineLength++;   // This isn't important when decoding
-                                    // but throwing an extra "if" seems
-                                    // just as wasteful.
-                    
-                    int b = buffer[ position++ ];
-
-                    if( position >= bufferLength )
-                        position = -1;
-
-                    return b & 0xFF; // This is how you "cast" a byte that's
-                                     // intended to be unsigned.
-                }   // end else
-            }   // end if: position >= 0
+         * to/from Base64 and returns the next byte.
+         *
+         * @return next byte
+         * @since 1.3
+         */
+        @Override
+				public int read() throws java.io.IOException 
+        { 
+            if( position >= numSigBytes && !fill() )
+                return -1;
             
-            // Else error
-            else
-            {   
-                // When JDK1.4 is more accepted, use an assertion here.
-                throw new java.io.IOException( "Error in Base64 code reading stream." );
-            }   // end else
+            return buffer[ position++ ] & 0xFF; // This is how you "cast" a byte that's
+                                                // intended to be unsigned.
         }   // end read
         
         
         /**
-         * Calls {@link #read()} repeatedly until the end of stream
+         * Reads converted data until the end of stream
          * is reached or <var>len</var> bytes are read.
          * Returns number of bytes read into array or -1 if
          * end of stream is encountered.
@@ -1488,25 +2685,186 @@ public class Base64
         @Override
 				public int read( byte[] dest, int off, int len ) throws java.io.IOException
         {
-            int i;
-            int b;
-            for( i = 0; i < len; i++ )
+            int i = 0;
+            while( i < len )
             {
-                b = read();
-                
-                //if( b < 0 && i == 0 )
-                //    return -1;
+                if( position >= numSigBytes && !fill() )
+                {
+                    if( i == 0 )
+                        return -1;
+                    break; // Out of 'while' loop
+                }   // end if: end of stream
                 
-                if( b >= 0 )
-                    dest[off + i] = (byte)b;
-                else if( i == 0 )
-                    return -1;
-                else
-                    break; // Out of 'for' loop
-            }   // end for: each byte read
+                int n = Math.min( len - i, numSigBytes - position );
+                System.arraycopy( buffer, position, dest, off + i, n );
+                position += n;
+                i += n;
+            }   // end while: more wanted
             return i;
         }   // end read
         
+        
+        /**
+         * Converts the next block of input into the buffer, reading from the
+         * underlying stream as needed.
+         *
+         * @return False if there is no more data
+         * @throws java.io.IOException
+         */
+        private boolean fill() throws java.io.IOException
+        {
+            position = 0;
+            numSigBytes = 0;
+            while( numSigBytes == 0 )
+            {
+                if( padded )
+                    return false;
+                
+                int available = inLength - inPosn;
+                if( encode ? !endOfInput && available < 3 : available == 0 )
+                {
+                    if( endOfInput )
+                    {
+                        if( b4Posn > 0 )
+                        {
+                            b4Posn = 0;
+                            throw new java.io.IOException( "Improperly padded Base64 input." );
+                        }   // end if: part of a quartet left
+                        return false;
+                    }   // end if: no more
+                    readBlock();
+                    continue;
+                }   // end if: need more input
+                if( encode && available == 0 )
+                    return false;
+                
+                numSigBytes = encode ? encodeBlock() : decodeBlock();
+            }   // end while: nothing converted
+            return true;
+        }   // end fill
+        
+        
+        /**
+         * Reads from the underlying stream into inBuff, after any bytes not
+         * yet converted.
+         *
+         * @throws java.io.IOException
+         */
+        private void readBlock() throws java.io.IOException
+        {
+            System.arraycopy( inBuff, inPosn, inBuff, 0, inLength - inPosn );
+            inLength -= inPosn;
+            inPosn = 0;
+            try
+            {
+                int read = in.read( inBuff, inLength, inBuff.length - inLength );
+                if( read < 0 )
+                    endOfInput = true;
+                else
+                    inLength += read;
+            }   // end try: read
+            catch( java.io.IOException e )
+            {
+                // When encoding, only a problem if we got no data at all.
+                if( !encode || inLength == 0 )
+                    throw e;
+                endOfInput = true;
+            }   // end catch
+        }   // end readBlock
+        
+        
+        /**
+         * Encodes all the complete quanta in inBuff, or at the end of input,
+         * everything left. A line break goes before any character that would
+         * make a line longer than 76, so there isn't one at the very end.
+         *
+         * @return Number of bytes put in the buffer
+         */
+        private int encodeBlock()
+        {
+            int available = inLength - inPosn;
+            int whole = available - available % 3;
+            int o = 0;
+            while( whole > 0 )
+            {
+                if( breakLines && lineLength >= MAX_LINE_LENGTH )
+                {
+                    buffer[ o++ ] = NEW_LINE;
+                    lineLength = 0;
+                }   // end if: end of line
+                
+                int take = breakLines ? Math.min( whole, ( MAX_LINE_LENGTH - lineLength ) / 4 * 3 ) : whole;
+                o = encodeQuanta( inBuff, inPosn, take, buffer, o, false, options );
+                inPosn += take;
+                whole -= take;
+                if( breakLines )
+                    lineLength += take / 3 * 4;
+            }   // end while: each line
+            
+            if( endOfInput && inPosn < inLength )
+            {
+                if( breakLines && lineLength >= MAX_LINE_LENGTH )
+                {
+                    buffer[ o++ ] = NEW_LINE;
+                    lineLength = 0;
+                }   // end if: end of line
+                encode3to4( inBuff, inPosn, inLength - inPosn, buffer, o, options );
+                o += 4;
+                lineLength += 4;
+                inPosn = inLength;
+            }   // end if: some padding needed
+            return o;
+        }   // end encodeBlock
+        
+        
+        /**
+         * Decodes the characters in inBuff. White space and anything else
+         * that isn't Base64 is skipped, and decoding stops after a padded
+         * quartet.
+         *
+         * @return Number of bytes put in the buffer
+         */
+        private int decodeBlock()
+        {
+            if( decodeTable == null )
+                decodeTable = getDecodeTable( options );
+            
+            int o = 0;
+            int i = inPosn;
+            for( ; i < inLength; i++ )
+            {
+                // Between quartets, take the fast path as far as it goes
+                if( b4Posn == 0 )
+                {
+                    int fast = decodeQuanta( inBuff, i, inLength - i, buffer, o, decodeTable );
+                    i += fast;
+                    o += fast / 4 * 3;
+                    if( i == inLength )
+                        break;
+                }   // end if: between quartets
+                
+                int b = inBuff[ i ] & 0xFF;
+                if( b >= decodabet.length || decodabet[ b ] <= WHITE_SPACE_ENC )
+                    continue;
+                
+                b4[ b4Posn++ ] = (byte)b;
+                if( b4Posn > 3 )
+                {
+                    int len = decode4to3( b4, 0, buffer, o, options );
+                    o += len;
+                    b4Posn = 0;
+                    if( len < 3 )
+                    {
+                        padded = true;
+                        i++;
+                        break;
+                    }   // end if: padded
+                }   // end if: got four characters
+            }   // end for: each input character
+            inPosn = i;
+            return o;
+        }   // end decodeBlock
+        
     }   // end inner class InputStream
     
     
@@ -1538,6 +2896,8 @@ public class Base64
         private boolean suspendEncoding;
 		private int options; // Record for later
 		private byte[]  decodabet;		// Local copies to avoid extra method calls
+		private short[] decodeTable;
+        private byte[]  outBuff; // Block of converted data for bulk writes
         
         /**
          * Constructs a {@link Base64.OutputStream} in ENCODE mode.
@@ -1584,6 +2944,7 @@ public class Base64
             this.b4           = new byte[4];
 			this.options      = options;
 			this.decodabet    = getDecodabet(options);
+            this.outBuff      = new byte[ BLOCK_SIZE ];
         }   // end constructor
         
         
@@ -1632,7 +2993,8 @@ public class Base64
             else
             {
                 // Meaningful Base64 character?
-                if( decodabet[ theByte & 0x7f ] > WHITE_SPACE_ENC )
+                int b = theByte & 0xFF;
+                if( b < decodabet.length && decodabet[ b ] > WHITE_SPACE_ENC )
                 {
                     buffer[ position++ ] = (byte)theByte;
                     if( position >= bufferLength )  // Enough to output.
@@ -1643,7 +3005,7 @@ public class Base64
                         position = 0;
                     }   // end if: enough to output
                 }   // end if: meaningful base64 character
-                else if( decodabet[ theByte & 0x7f ] != WHITE_SPACE_ENC )
+                else if( b >= decodabet.length || decodabet[ b ] != WHITE_SPACE_ENC )
                 {
                     throw new java.io.IOException( "Invalid character in Base64 data." );
                 }   // end else: not white space either
@@ -1653,8 +3015,9 @@ public class Base64
         
         
         /**
-         * Calls {@link #write(int)} repeatedly until <var>len</var> 
-         * bytes are written.
+         * Converts <var>len</var> bytes a block at a time and writes
+         * the result to the output stream. Any incomplete quantum
+         * or quartet at the end is kept until the next write.
          *
          * @param theBytes array from which to read bytes
          * @param off offset for array
@@ -1672,14 +3035,116 @@ public class Base64
                 return;
             }   // end if: supsended
             
-            for( int i = 0; i < len; i++ )
-            {
-                write( theBytes[ off + i ] );
-            }   // end for: each byte written
+            if( encode )
+                encodeBlock( theBytes, off, len );
+            else
+                decodeBlock( theBytes, off, len );
             
         }   // end write
         
         
+        /**
+         * Encodes bytes for {@link #write(byte[], int, int)}.
+         *
+         * @param theBytes array from which to read bytes
+         * @param off offset for array
+         * @param len number of bytes
+         * @throws java.io.IOException
+         */
+        private void encodeBlock( byte[] theBytes, int off, int len ) throws java.io.IOException
+        {
+            int end = off + len;
+            
+            // Finish any quantum left over from last time
+            while( position > 0 && off < end )
+                write( theBytes[ off++ ] );
+            
+            int o = 0;
+            while( end - off >= 3 )
+            {
+                int whole = ( end - off ) - ( end - off ) % 3;
+                int take = breakLines ? Math.min( whole, ( MAX_LINE_LENGTH - lineLength ) / 4 * 3 ) : whole;
+                take = Math.min( take, ( outBuff.length - o - 1 ) / 4 * 3 );
+                if( take == 0 )
+                {
+                    out.write( outBuff, 0, o );
+                    o = 0;
+                    continue;
+                }   // end if: block full
+                
+                o = encodeQuanta( theBytes, off, take, outBuff, o, false, options );
+                off += take;
+                lineLength += take / 3 * 4;
+                if( breakLines && lineLength >= MAX_LINE_LENGTH )
+                {
+                    outBuff[ o++ ] = NEW_LINE;
+                    lineLength = 0;
+                }   // end if: end of line
+            }   // end while: whole quanta
+            if( o > 0 )
+                out.write( outBuff, 0, o );
+            
+            // Keep the rest for next time
+            while( off < end )
+                buffer[ position++ ] = theBytes[ off++ ];
+        }   // end encodeBlock
+        
+        
+        /**
+         * Decodes characters for {@link #write(byte[], int, int)}.
+         *
+         * @param theBytes array from which to read characters
+         * @param off offset for array
+         * @param len number of characters
+         * @throws java.io.IOException
+         */
+        private void decodeBlock( byte[] theBytes, int off, int len ) throws java.io.IOException
+        {
+            if( decodeTable == null )
+                decodeTable = getDecodeTable( options );
+            
+            int end = off + len;
+            int o = 0;
+            for( int i = off; i < end; i++ )
+            {
+                // Between quartets, take the fast path as far as it goes
+                if( position == 0 )
+                {
+                    int room = ( outBuff.length - o ) / 6 * 8;
+                    int fast = decodeQuanta( theBytes, i, Math.min( end - i, room ), outBuff, o, decodeTable );
+                    i += fast;
+                    o += fast / 4 * 3;
+                    if( i == end )
+                        break;
+                    if( outBuff.length - o < 3 )
+                    {
+                        out.write( outBuff, 0, o );
+                        o = 0;
+                    }   // end if: block full
+                }   // end if: between quartets
+                
+                // Meaningful Base64 character?
+                int b = theBytes[ i ] & 0xFF;
+                if( b < decodabet.length && decodabet[ b ] > WHITE_SPACE_ENC )
+                {
+                    buffer[ position++ ] = (byte)b;
+                    if( position >= bufferLength )  // Enough to output.
+                    {
+                        o += Base64.decode4to3( buffer, 0, outBuff, o, options );
+                        position = 0;
+                    }   // end if: enough to output
+                }   // end if: meaningful base64 character
+                else if( b >= decodabet.length || decodabet[ b ] != WHITE_SPACE_ENC )
+                {
+                    out.write( outBuff, 0, o );
+                    throw new java.io.IOException( "Invalid character in Base64 data." );
+                }   // end else: not white space either
+            }   // end for: each character
+            if( o > 0 )
+                out.write( outBuff, 0, o );
+        }   // end decodeBlock
+        
+        
         
         /**
          * Method added by PHIL. [Thanks, PHIL. -Rob]
@@ -1757,4 +3222,373 @@ public class Base64
     }   // end inner class OutputStream
     
     
+    
+    
+    
+    
+    /* ********  I N N E R   C L A S S   E N C O D E R  ******** */
+    
+    
+    
+    /**
+     * A {@link Base64.Encoder} encodes from one buffer into another a
+     * piece at a time, in the style of <tt>java.nio.charset.CharsetEncoder</tt>.
+     * Buffers may be direct; they are read and written in place. The output
+     * is the same as {@link Base64#encodeBytes(byte[], int)}, including
+     * line breaks.
+     * <p>
+     * Each call encodes as much as it can and returns
+     * <tt>CoderResult.UNDERFLOW</tt> when it needs more input or
+     * <tt>CoderResult.OVERFLOW</tt> when the output buffer is full. One or
+     * two bytes at the end of the input are left in the input buffer until
+     * more arrive, or until a call with <var>endOfInput</var> true pads them.
+     * For example, to write to a channel:<pre>
+     *   while( ... ) {
+     *     encoder.encode( in, out, last );
+     *     out.flip();
+     *     channel.write( out );
+     *     out.compact();
+     *     in.compact(); // and read more into it
+     *   }
+     * </pre>
+     *
+     * @see Base64
+     */
+    public static class Encoder
+    {
+        private boolean breakLines;
+        private int     lineLength;
+        private int     options;
+        private short[] encodeTable;
+        
+        
+        /**
+         * Constructs an encoder.
+         * <p>
+         * Valid options:<pre>
+         *   DONT_BREAK_LINES: don't break lines at 76 characters
+         *   URL_SAFE or ORDERED: alphabet to use
+         * </pre>
+         *
+         * @param options Specified options
+         */
+        public Encoder( int options )
+        {
+            this.breakLines  = (options & DONT_BREAK_LINES) != DONT_BREAK_LINES;
+            this.options     = options;
+            this.encodeTable = getEncodeTable( options );
+        }   // end constructor
+        
+        
+        /**
+         * Encodes bytes from the input buffer into the output buffer,
+         * moving both positions on.
+         *
+         * @param in Data to encode
+         * @param out Buffer for Base64 characters
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW or OVERFLOW
+         */
+        public java.nio.charset.CoderResult encode( java.nio.ByteBuffer in, java.nio.ByteBuffer out, boolean endOfInput )
+        {
+            return encode( in, out, null, endOfInput );
+        }   // end encode
+        
+        
+        /**
+         * Encodes bytes from the input buffer into a character buffer,
+         * moving both positions on.
+         *
+         * @param in Data to encode
+         * @param out Buffer for Base64 characters
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW or OVERFLOW
+         */
+        public java.nio.charset.CoderResult encode( java.nio.ByteBuffer in, java.nio.CharBuffer out, boolean endOfInput )
+        {
+            return encode( in, null, out, endOfInput );
+        }   // end encode
+        
+        
+        /**
+         * Resets the encoder so that it can be used for new data.
+         *
+         * @return This encoder
+         */
+        public Encoder reset()
+        {
+            lineLength = 0;
+            return this;
+        }   // end reset
+        
+        
+        /**
+         * Does the encoding for both output types; exactly one of
+         * <var>bytes</var> and <var>chars</var> is non-null.
+         *
+         * @param in Data to encode
+         * @param bytes Byte output, or null
+         * @param chars Character output, or null
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW or OVERFLOW
+         */
+        private java.nio.charset.CoderResult encode( java.nio.ByteBuffer in,
+         java.nio.ByteBuffer bytes, java.nio.CharBuffer chars, boolean endOfInput )
+        {
+            java.nio.Buffer out = bytes != null ? bytes : chars;
+            int ip = in.position(), il = in.limit();
+            int op = out.position(), ol = out.limit();
+            boolean arrays = bytes != null && in.hasArray() && bytes.hasArray();
+            
+            java.nio.charset.CoderResult result = java.nio.charset.CoderResult.UNDERFLOW;
+            while( true )
+            {
+                // A line break is due straight after each full line
+                if( breakLines && lineLength == MAX_LINE_LENGTH )
+                {
+                    if( op == ol )
+                    {
+                        result = java.nio.charset.CoderResult.OVERFLOW;
+                        break;
+                    }   // end if: no room
+                    put( chars, bytes, op++, NEW_LINE );
+                    lineLength = 0;
+                }   // end if: end of line
+                
+                int remaining = il - ip;
+                if( remaining < 3 && !( endOfInput && remaining > 0 ) )
+                    break;
+                if( ol - op < 4 )
+                {
+                    result = java.nio.charset.CoderResult.OVERFLOW;
+                    break;
+                }   // end if: no room
+                
+                int take = Math.min( remaining, 3 );
+                if( arrays && remaining >= 6 )
+                {
+                    // As much as fits on the line in one go
+                    take = Math.min( remaining - remaining % 3, ( ol - op ) / 4 * 3 );
+                    if( breakLines )
+                        take = Math.min( take, ( MAX_LINE_LENGTH - lineLength ) / 4 * 3 );
+                    encodeQuanta( in.array(), in.arrayOffset() + ip, take,
+                        bytes.array(), bytes.arrayOffset() + op, false, options );
+                }   // end if: arrays
+                else
+                {
+                    int inBuff =   ( ( in.get( ip ) & 0xff ) << 16 )
+                                 | ( take > 1 ? ( in.get( ip + 1 ) & 0xff ) << 8 : 0 )
+                                 | ( take > 2 ? ( in.get( ip + 2 ) & 0xff )      : 0 );
+                    int c0 = encodeTable[ inBuff >>> 12   ];
+                    int c1 = encodeTable[ inBuff  & 0xfff ];
+                    put( chars, bytes, op,     c0 >> 8 );
+                    put( chars, bytes, op + 1, c0 & 0xff );
+                    put( chars, bytes, op + 2, take > 1 ? c1 >> 8 : EQUALS_SIGN );
+                    put( chars, bytes, op + 3, take > 2 ? c1 & 0xff : EQUALS_SIGN );
+                }   // end else: one quantum
+                ip += take;
+                op += ( take + 2 ) / 3 * 4;
+                
+                // The padded quantum at the end never has a break after it
+                if( breakLines && take % 3 == 0 )
+                    lineLength += take / 3 * 4;
+            }   // end while: more to do
+            
+            in.position( ip );
+            out.position( op );
+            return result;
+        }   // end encode
+        
+    }   // end inner class Encoder
+    
+    
+    
+    
+    
+    
+    /* ********  I N N E R   C L A S S   D E C O D E R  ******** */
+    
+    
+    
+    /**
+     * A {@link Base64.Decoder} decodes from one buffer into another a piece
+     * at a time, in the style of <tt>java.nio.charset.CharsetDecoder</tt>.
+     * Buffers may be direct; they are read and written in place. Characters
+     * are handled as in {@link Base64#decode(byte[], int, int, int)}, except
+     * that a bad character gives a malformed-input result rather than a
+     * message. The input position is left at the bad character.
+     * <p>
+     * A partial quartet at the end of the input is kept until the next call.
+     * Decoding ends after a quartet ending in an equals sign; anything after
+     * that is left in the input buffer so the caller can see where the
+     * Base64 data stopped. Characters that don't make a whole quartet when
+     * <var>endOfInput</var> is true are ignored, as in decode.
+     *
+     * @see Base64
+     */
+    public static class Decoder
+    {
+        private int     quartet;        // Partial quartet, packed into an int
+        private int     b4Posn;         // Number of characters in quartet
+        private boolean finished;       // Reached the final padding
+		private byte[]  decodabet;
+		private short[] decodeTable;
+        
+        
+        /**
+         * Constructs a decoder.
+         *
+         * @param options Alphabet (URL_SAFE or ORDERED) or NO_OPTIONS
+         */
+        public Decoder( int options )
+        {
+            this.decodabet   = getDecodabet( options );
+            this.decodeTable = getDecodeTable( options );
+        }   // end constructor
+        
+        
+        /**
+         * Decodes Base64 characters from the input buffer into the output
+         * buffer, moving both positions on.
+         *
+         * @param in Base64 characters
+         * @param out Buffer for decoded data
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW, OVERFLOW or a malformed-input result
+         */
+        public java.nio.charset.CoderResult decode( java.nio.ByteBuffer in, java.nio.ByteBuffer out, boolean endOfInput )
+        {
+            return decode( in, null, out, endOfInput );
+        }   // end decode
+        
+        
+        /**
+         * Decodes Base64 characters from a character buffer into the output
+         * buffer, moving both positions on.
+         *
+         * @param in Base64 characters
+         * @param out Buffer for decoded data
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW, OVERFLOW or a malformed-input result
+         */
+        public java.nio.charset.CoderResult decode( java.nio.CharBuffer in, java.nio.ByteBuffer out, boolean endOfInput )
+        {
+            return decode( null, in, out, endOfInput );
+        }   // end decode
+        
+        
+        /**
+         * @return True if decoding has reached the padding at the end of the
+         *   Base64 data, so that further calls do nothing
+         */
+        public boolean isFinished()
+        {
+            return finished;
+        }   // end isFinished
+        
+        
+        /**
+         * Resets the decoder so that it can be used for new data.
+         *
+         * @return This decoder
+         */
+        public Decoder reset()
+        {
+            quartet  = 0;
+            b4Posn   = 0;
+            finished = false;
+            return this;
+        }   // end reset
+        
+        
+        /**
+         * Does the decoding for both input types; exactly one of
+         * <var>bytes</var> and <var>chars</var> is non-null.
+         *
+         * @param bytes Byte input, or null
+         * @param chars Character input, or null
+         * @param out Buffer for decoded data
+         * @param endOfInput True if there will be no more input after this
+         * @return UNDERFLOW, OVERFLOW or a malformed-input result
+         */
+        private java.nio.charset.CoderResult decode( java.nio.ByteBuffer bytes,
+         java.nio.CharBuffer chars, java.nio.ByteBuffer out, boolean endOfInput )
+        {
+            if( finished )
+                return java.nio.charset.CoderResult.UNDERFLOW;
+            
+            java.nio.Buffer in = bytes != null ? bytes : chars;
+            int ip = in.position(), il = in.limit();
+            int op = out.position(), ol = out.limit();
+            boolean arrays = bytes != null && bytes.hasArray() && out.hasArray();
+            
+            java.nio.charset.CoderResult result = java.nio.charset.CoderResult.UNDERFLOW;
+            while( ip < il )
+            {
+                // Between quartets, take the fast path as far as it goes
+                if( b4Posn == 0 && bytes != null )
+                {
+                    int len = Math.min( il - ip, ( ol - op ) / 6 * 8 );
+                    int fast = arrays
+                        ? decodeQuanta( bytes.array(), bytes.arrayOffset() + ip, len,
+                            out.array(), out.arrayOffset() + op, decodeTable )
+                        : decodeQuanta( bytes, ip, len, out, op, decodeTable );
+                    ip += fast;
+                    op += fast / 4 * 3;
+                    if( ip == il )
+                        break;
+                }   // end if: between quartets
+                
+                int c = bytes != null ? bytes.get( ip ) & 0xff : chars.get( ip );
+                if( c >= decodabet.length || decodabet[ c ] < WHITE_SPACE_ENC )
+                {
+                    result = java.nio.charset.CoderResult.malformedForLength( 1 );
+                    break;
+                }   // end if: bad character
+                
+                if( decodabet[ c ] >= EQUALS_SIGN_ENC )
+                {
+                    if( b4Posn == 3 )
+                    {
+                        int q = ( quartet << 8 ) | c;
+                        int length = ( ( q >>> 8 ) & 0xff ) == EQUALS_SIGN ? 1 : c == EQUALS_SIGN ? 2 : 3;
+                        if( ol - op < length )
+                        {
+                            result = java.nio.charset.CoderResult.OVERFLOW;
+                            break;
+                        }   // end if: no room
+                        op = putQuartet( q, decodabet, null, out, op, ol );
+                        quartet = 0;
+                        b4Posn = 0;
+                        
+                        if( c == EQUALS_SIGN )
+                        {
+                            finished = true;
+                            ip++;
+                            break;
+                        }   // end if: padded
+                    }   // end if: quartet built
+                    else
+                    {
+                        quartet = ( quartet << 8 ) | c;
+                        b4Posn++;
+                    }   // end else: part of quartet
+                }   // end if: equals sign or better
+                ip++;
+            }   // end while: more input
+            
+            if( endOfInput && ip == il )
+            {
+                quartet = 0;
+                b4Posn = 0;
+            }   // end if: drop partial quartet
+            
+            in.position( ip );
+            out.position( op );
+            return result;
+        }   // end decode
+        
+    }   // end inner class Decoder
+    
+    
 }   // end class Base64
@@ -0,0 +1,127 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an action once things have gone quiet: the action runs a fixed delay
+ * after the last call to {@link #trigger()}. Useful for things like
+ * searching as the user types.
+ * <p>
+ * Triggering doesn't cancel and re-add a timed event each time. Only the
+ * time of the last trigger is recorded; when the pending event falls due it
+ * checks that time, and waits again for the remainder if necessary.
+ */
+public class Debouncer
+{
+	private final Runnable r;
+	private final long delay;
+	private final boolean inEventThread;
+
+	/** Time of last trigger */
+	private long lastTrigger;
+
+	/** Token for the pending timed event, or null if none */
+	private Object pending;
+
+	/** ID of the pending timed event */
+	private int pendingID;
+
+	/**
+	 * @param r Action to run
+	 * @param lDelay Delay after the last trigger (milliseconds)
+	 * @param inEventThread If true, runs action in the user-interface event
+	 *   thread
+	 */
+	public Debouncer(Runnable r, long lDelay, boolean inEventThread)
+	{
+		this.r = r;
+		this.delay = TimeUnit.MILLISECONDS.toNanos(lDelay);
+		this.inEventThread = inEventThread;
+	}
+
+	/**
+	 * Records that something has happened. The action will run once nothing
+	 * else has happened for the delay.
+	 */
+	public synchronized void trigger()
+	{
+		lastTrigger = TimeUtils.nanoTime();
+		if(pending == null)
+		{
+			schedule(delay);
+		}
+	}
+
+	/**
+	 * Cancels the action if it is waiting to run.
+	 */
+	public synchronized void cancel()
+	{
+		if(pending != null)
+		{
+			TimeUtils.cancelTimedEvent(pendingID);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Adds the timed event. Must be called within synchronization.
+	 * @param wait Delay in nanoseconds
+	 */
+	private void schedule(long wait)
+	{
+		final Object token = new Object();
+		pending = token;
+		pendingID = TimeUtils.addTimedEvent(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fire(token);
+			}
+		}, wait, TimeUnit.NANOSECONDS, inEventThread);
+	}
+
+	/**
+	 * Called when the timed event falls due.
+	 * @param token Token for the event
+	 */
+	private void fire(Object token)
+	{
+		synchronized(this)
+		{
+			if(pending != token)
+			{
+				// Cancelled
+				return;
+			}
+			long remaining = lastTrigger + delay - TimeUtils.nanoTime();
+			if(remaining > 0)
+			{
+				// Triggered again since it was scheduled
+				schedule(remaining);
+				return;
+			}
+			pending = null;
+		}
+		r.run();
+	}
+}
@@ -0,0 +1,273 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+
+import java.util.*;
+
+/**
+ * Pending events of one shard by ID, so that they can be cancelled without
+ * a search. The IDs are kept in open-addressed tables of ints alongside the
+ * events, so adding and removing an event allocates nothing unless a table
+ * has to grow. Calls can come from any thread. The index is split into
+ * stripes, each with its own lock and table, so threads adding, cancelling
+ * and running events rarely wait for each other, and growing or shrinking
+ * a table only holds up the events in that stripe.
+ */
+class EventIndex
+{
+	/** Number of stripes; a power of two */
+	private final static int STRIPES = 64;
+
+	/** Bits of the hash that pick the stripe */
+	private final static int STRIPE_SHIFT =
+		32 - Integer.numberOfTrailingZeros(STRIPES);
+
+	/** Stripes, each guarded by its own lock */
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	EventIndex()
+	{
+		for(int i=0; i<STRIPES; i++)
+		{
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * @param id ID
+	 * @return Hash of the ID; IDs from one shard share their low bits, so the
+	 *   high ones are mixed in
+	 */
+	private static int hash(int id)
+	{
+		int hash = id * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @param hash Hash of an ID
+	 * @return Stripe that holds the ID
+	 */
+	private Stripe stripe(int hash)
+	{
+		return stripes[hash >>> STRIPE_SHIFT];
+	}
+
+	/**
+	 * Adds an event, replacing any other with the same ID.
+	 * @param te Event
+	 */
+	void put(TimedEvent te)
+	{
+		int hash = hash(te.id);
+		stripe(hash).put(te, hash);
+	}
+
+	/**
+	 * Removes an event by ID.
+	 * @param id ID
+	 * @return Event, or null if there isn't one with that ID
+	 */
+	TimedEvent remove(int id)
+	{
+		int hash = hash(id);
+		return stripe(hash).remove(id, null, hash);
+	}
+
+	/**
+	 * Removes an event if it is still in the index.
+	 * @param te Event
+	 * @return True if it was removed, false if it had already gone
+	 */
+	boolean remove(TimedEvent te)
+	{
+		int hash = hash(te.id);
+		return stripe(hash).remove(te.id, te, hash) != null;
+	}
+
+	/** @return Number of events (not a snapshot if events are changing) */
+	int size()
+	{
+		int size = 0;
+		for(Stripe stripe : stripes)
+		{
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/** @return Copy of all the events, in no particular order */
+	List<TimedEvent> values()
+	{
+		List<TimedEvent> all = new ArrayList<TimedEvent>();
+		for(Stripe stripe : stripes)
+		{
+			stripe.addTo(all);
+		}
+		return all;
+	}
+
+	/** Removes all events. */
+	void clear()
+	{
+		for(Stripe stripe : stripes)
+		{
+			stripe.clear();
+		}
+	}
+
+	/** One stripe: an open-addressed table with linear probing */
+	private static class Stripe
+	{
+		/** Initial capacity; always a power of two */
+		private final static int INITIAL_CAPACITY = 16;
+
+		/** Event IDs, by slot */
+		private int[] ids = new int[INITIAL_CAPACITY];
+
+		/** Events, by slot; null if the slot is free */
+		private TimedEvent[] events = new TimedEvent[INITIAL_CAPACITY];
+
+		/** Number of events */
+		private int size;
+
+		synchronized void put(TimedEvent te, int hash)
+		{
+			if(size * 2 >= events.length)
+			{
+				resize(events.length * 2);
+			}
+			int slot = find(te.id, hash);
+			if(events[slot] == null)
+			{
+				size++;
+			}
+			ids[slot] = te.id;
+			events[slot] = te;
+		}
+
+		/**
+		 * @param id ID
+		 * @param te Event that must be the one with the ID, or null for any
+		 * @param hash Hash of the ID
+		 * @return Event removed, or null if none
+		 */
+		synchronized TimedEvent remove(int id, TimedEvent te, int hash)
+		{
+			int slot = find(id, hash);
+			TimedEvent found = events[slot];
+			if(found == null || (te != null && found != te))
+			{
+				return null;
+			}
+			removeAt(slot);
+			if(events.length > INITIAL_CAPACITY && size * 8 < events.length)
+			{
+				resize(events.length / 2);
+			}
+			return found;
+		}
+
+		synchronized int size()
+		{
+			return size;
+		}
+
+		synchronized void addTo(List<TimedEvent> all)
+		{
+			for(TimedEvent te : events)
+			{
+				if(te != null)
+				{
+					all.add(te);
+				}
+			}
+		}
+
+		synchronized void clear()
+		{
+			ids = new int[INITIAL_CAPACITY];
+			events = new TimedEvent[INITIAL_CAPACITY];
+			size = 0;
+		}
+
+		/**
+		 * @param id ID
+		 * @param hash Hash of the ID
+		 * @return Slot that holds the ID, or the free slot where it would go
+		 */
+		private int find(int id, int hash)
+		{
+			int mask = events.length - 1;
+			int slot = hash & mask;
+			while(events[slot] != null && ids[slot] != id)
+			{
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * Empties a slot, moving later events in the same run back so that
+		 * lookups still find them.
+		 * @param slot Slot
+		 */
+		private void removeAt(int slot)
+		{
+			int mask = events.length - 1;
+			events[slot] = null;
+			size--;
+			int gap = slot;
+			for(int i = (slot + 1) & mask; events[i] != null; i = (i + 1) & mask)
+			{
+				// Moves into the gap unless its home slot lies after the gap
+				if(((i - hash(ids[i])) & mask) >= ((i - gap) & mask))
+				{
+					ids[gap] = ids[i];
+					events[gap] = events[i];
+					events[i] = null;
+					gap = i;
+				}
+			}
+		}
+
+		/**
+		 * Changes the size of the table.
+		 * @param capacity New size; a power of two more than the number of
+		 *   events
+		 */
+		private void resize(int capacity)
+		{
+			int[] oldIds = ids;
+			TimedEvent[] oldEvents = events;
+			ids = new int[capacity];
+			events = new TimedEvent[capacity];
+			for(int i=0; i<oldEvents.length; i++)
+			{
+				if(oldEvents[i] != null)
+				{
+					int slot = find(oldIds[i], hash(oldIds[i]));
+					ids[slot] = oldIds[i];
+					events[slot] = oldEvents[i];
+				}
+			}
+		}
+	}
+}
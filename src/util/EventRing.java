@@ -0,0 +1,99 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-size queue that any number of threads can add events to and one
+ * thread takes them from. Slots are allocated up front, so unlike a linked
+ * queue, adding an event allocates nothing.
+ */
+class EventRing
+{
+	/** Events; null once taken */
+	private final AtomicReferenceArray<TimedEvent> slots;
+
+	/** Capacity minus one */
+	private final int mask;
+
+	/** Number of slots claimed by adding threads */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Number of slots taken; only changed by the taking thread */
+	private volatile long head;
+
+	/**
+	 * @param capacity Number of slots; must be a power of two
+	 */
+	EventRing(int capacity)
+	{
+		slots = new AtomicReferenceArray<TimedEvent>(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds an event.
+	 * @param te Event
+	 * @return Number of events now waiting, including this one; 0 if the
+	 *   ring is full and the event was not added
+	 */
+	int offer(TimedEvent te)
+	{
+		while(true)
+		{
+			long t = tail.get(), waiting = t - head;
+			if(waiting > mask)
+			{
+				return 0;
+			}
+			if(tail.compareAndSet(t, t + 1))
+			{
+				slots.set((int)t & mask, te);
+				return (int)waiting + 1;
+			}
+		}
+	}
+
+	/**
+	 * Takes the next event. Only called by one thread.
+	 * @return Event, or null if there is none (or the next one hasn't quite
+	 *   finished being added; {@link #isEmpty()} is false in that case)
+	 */
+	TimedEvent poll()
+	{
+		long h = head;
+		int slot = (int)h & mask;
+		TimedEvent te = slots.get(slot);
+		if(te == null)
+		{
+			return null;
+		}
+		slots.lazySet(slot, null);
+		head = h + 1;
+		return te;
+	}
+
+	/** @return True if nothing has been added since the last event was taken */
+	boolean isEmpty()
+	{
+		return head == tail.get();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.*;
+
+/**
+ * Timer queue that keeps events in exact due time order. This is the
+ * default; events run as close to their due time as the thread allows.
+ * <p>
+ * Events are held in a binary heap made of parallel arrays, with the due
+ * time and ID of each event alongside it so that comparisons don't need to
+ * look at the events themselves. Adding an event allocates nothing unless
+ * the arrays have to grow, unlike a tree which needs a node per event.
+ * Each event records its position in the heap, so it can be removed
+ * without a search.
+ */
+class HeapTimerQueue implements TimerQueue
+{
+	/** Initial capacity; the arrays never shrink below this */
+	private final static int INITIAL_CAPACITY = 64;
+
+	/** Due times, in heap order */
+	private long[] dues = new long[INITIAL_CAPACITY];
+
+	/** Event IDs, in heap order (used when due times are equal) */
+	private int[] ids = new int[INITIAL_CAPACITY];
+
+	/** Events, in heap order */
+	private TimedEvent[] events = new TimedEvent[INITIAL_CAPACITY];
+
+	/** Number of events */
+	private int size;
+
+	@Override
+	public void add(TimedEvent te)
+	{
+		if(size == events.length)
+		{
+			resize(size * 2);
+		}
+		siftUp(size++, te.due, te.id, te);
+	}
+
+	@Override
+	public void remove(TimedEvent te)
+	{
+		removeAt(te.heapIndex);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public long nextCheck()
+	{
+		if(size == 0)
+		{
+			return Long.MAX_VALUE;
+		}
+		return dues[0];
+	}
+
+	@Override
+	public void pollDue(long now, List<TimedEvent> due)
+	{
+		// The earliest is always at the top, so they come out in order
+		while(size > 0 && dues[0] <= now)
+		{
+			due.add(removeAt(0));
+		}
+	}
+
+	@Override
+	public void drainTo(Collection<TimedEvent> all)
+	{
+		// Keeps the arrays, since the events usually go straight back in
+		for(int i=0; i<size; i++)
+		{
+			all.add(events[i]);
+			events[i] = null;
+		}
+		size = 0;
+	}
+
+	@Override
+	public void reset(long now)
+	{
+	}
+
+	/**
+	 * Removes the event at a position.
+	 * @param index Position in heap
+	 * @return Event
+	 */
+	private TimedEvent removeAt(int index)
+	{
+		TimedEvent removed = events[index];
+		size--;
+		if(index != size)
+		{
+			// Move the last one into the gap, then put it in the right place
+			long due = dues[size];
+			int id = ids[size];
+			TimedEvent last = events[size];
+			events[size] = null;
+			if(index > 0 && before(due, id, dues[(index - 1) >>> 1],
+				ids[(index - 1) >>> 1]))
+			{
+				siftUp(index, due, id, last);
+			}
+			else
+			{
+				siftDown(index, due, id, last);
+			}
+		}
+		else
+		{
+			events[size] = null;
+		}
+		if(events.length > INITIAL_CAPACITY && size < events.length / 4)
+		{
+			resize(events.length / 2);
+		}
+		return removed;
+	}
+
+	/**
+	 * Places an event at a position, moving it up towards the top until it
+	 * is in order.
+	 * @param index Starting position (currently empty)
+	 * @param due Due time
+	 * @param id ID
+	 * @param te Event
+	 */
+	private void siftUp(int index, long due, int id, TimedEvent te)
+	{
+		while(index > 0)
+		{
+			int parent = (index - 1) >>> 1;
+			if(!before(due, id, dues[parent], ids[parent]))
+			{
+				break;
+			}
+			set(index, dues[parent], ids[parent], events[parent]);
+			index = parent;
+		}
+		set(index, due, id, te);
+	}
+
+	/**
+	 * Places an event at a position, moving it down away from the top until
+	 * it is in order.
+	 * @param index Starting position (currently empty)
+	 * @param due Due time
+	 * @param id ID
+	 * @param te Event
+	 */
+	private void siftDown(int index, long due, int id, TimedEvent te)
+	{
+		int half = size >>> 1;
+		while(index < half)
+		{
+			int child = 2 * index + 1, right = child + 1;
+			if(right < size && before(dues[right], ids[right], dues[child], ids[child]))
+			{
+				child = right;
+			}
+			if(!before(dues[child], ids[child], due, id))
+			{
+				break;
+			}
+			set(index, dues[child], ids[child], events[child]);
+			index = child;
+		}
+		set(index, due, id, te);
+	}
+
+	private void set(int index, long due, int id, TimedEvent te)
+	{
+		dues[index] = due;
+		ids[index] = id;
+		events[index] = te;
+		te.heapIndex = index;
+	}
+
+	/**
+	 * Same order as {@link TimedEvent#compareTo(TimedEvent)}.
+	 * @return True if the first event should run before the second
+	 */
+	private static boolean before(long due1, int id1, long due2, int id2)
+	{
+		return due1 < due2 || (due1 == due2 && id1 - id2 < 0);
+	}
+
+	/**
+	 * Changes the size of the arrays.
+	 * @param capacity New size, which must be at least the number of events
+	 */
+	private void resize(int capacity)
+	{
+		dues = Arrays.copyOf(dues, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		events = Arrays.copyOf(events, capacity);
+	}
+}
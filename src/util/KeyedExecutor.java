@@ -0,0 +1,132 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Wraps an executor so that tasks sharing a key run one at a time, in the
+ * order they were submitted, while tasks with different keys can run in
+ * parallel. Each task is submitted to the underlying executor separately,
+ * so a busy key doesn't hog a thread. If the executor rejects a task (for
+ * example because it has been shut down), the task runs in the calling
+ * thread instead.
+ */
+class KeyedExecutor
+{
+	/** Underlying executor */
+	private final Executor executor;
+
+	/**
+	 * Tasks waiting behind the one currently running, for each key that has
+	 * a task running
+	 */
+	private final Map<Object, LinkedList<Runnable>> waiting =
+		new HashMap<Object, LinkedList<Runnable>>();
+
+	/**
+	 * @param executor Underlying executor
+	 */
+	KeyedExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs a task.
+	 * @param key Key; null if the task doesn't need to be ordered
+	 * @param r Task, which should not throw exceptions
+	 */
+	void execute(Object key, Runnable r)
+	{
+		if(key == null)
+		{
+			submit(r);
+			return;
+		}
+
+		synchronized(waiting)
+		{
+			LinkedList<Runnable> queue = waiting.get(key);
+			if(queue != null)
+			{
+				queue.add(r);
+				return;
+			}
+			waiting.put(key, new LinkedList<Runnable>());
+		}
+		submit(new KeyedTask(key, r));
+	}
+
+	/**
+	 * Passes a task to the executor, or runs it directly if rejected.
+	 * @param r Task
+	 */
+	private void submit(Runnable r)
+	{
+		try
+		{
+			executor.execute(r);
+		}
+		catch(RejectedExecutionException e)
+		{
+			r.run();
+		}
+	}
+
+	/** Runs one task, then submits the next task with the same key */
+	private class KeyedTask implements Runnable
+	{
+		private Object key;
+		private Runnable r;
+
+		private KeyedTask(Object key, Runnable r)
+		{
+			this.key = key;
+			this.r = r;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				r.run();
+			}
+			finally
+			{
+				Runnable next;
+				synchronized(waiting)
+				{
+					LinkedList<Runnable> queue = waiting.get(key);
+					next = queue.poll();
+					if(next == null)
+					{
+						waiting.remove(key);
+					}
+				}
+				if(next != null)
+				{
+					submit(new KeyedTask(key, next));
+				}
+			}
+		}
+	}
+}
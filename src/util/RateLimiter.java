@@ -0,0 +1,179 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket rate limiter. Permits build up at a steady rate, to a
+ * maximum burst size; each action uses one permit.
+ * <p>
+ * Actions passed to {@link #execute(Runnable)} when no permit is available
+ * wait in a backlog. A single timed event, added when the next permit is
+ * due, works through the backlog; actions don't get timed events of their
+ * own.
+ */
+public class RateLimiter
+{
+	private final long permitInterval;
+	private final int burst;
+	private final boolean inEventThread;
+
+	/** Permits available as of lastRefill (may include a fraction) */
+	private double permits;
+
+	/** Time at which permits was last brought up to date */
+	private long lastRefill;
+
+	/** Actions waiting for permits */
+	private LinkedList<Runnable> backlog = new LinkedList<Runnable>();
+
+	/** True if a timed event is pending to work through the backlog */
+	private boolean draining;
+
+	/**
+	 * @param permitsPerSecond Rate at which permits become available
+	 * @param burst Maximum number of permits that can build up; the limiter
+	 *   starts with this many
+	 * @param inEventThread If true, actions from the backlog run in the
+	 *   user-interface event thread
+	 * @throws IllegalArgumentException If rate or burst is not positive
+	 */
+	public RateLimiter(double permitsPerSecond, int burst, boolean inEventThread)
+	{
+		if(permitsPerSecond <= 0 || burst <= 0)
+		{
+			throw new IllegalArgumentException("Invalid rate");
+		}
+		this.permitInterval = Math.max(1L, (long)(1000000000.0 / permitsPerSecond));
+		this.burst = burst;
+		this.inEventThread = inEventThread;
+		this.permits = burst;
+		this.lastRefill = TimeUtils.nanoTime();
+	}
+
+	/**
+	 * Takes a permit if one is available. Doesn't wait.
+	 * @return True if a permit was taken
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		refill();
+		if(!backlog.isEmpty() || permits < 1.0)
+		{
+			return false;
+		}
+		permits -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Runs an action when a permit is available. If one is available now (and
+	 * no earlier actions are waiting), the action runs immediately in the
+	 * calling thread; otherwise it is added to the backlog.
+	 * @param r Action
+	 */
+	public void execute(Runnable r)
+	{
+		synchronized(this)
+		{
+			if(!tryAcquire())
+			{
+				backlog.add(r);
+				scheduleDrain();
+				return;
+			}
+		}
+		r.run();
+	}
+
+	/** @return Number of actions waiting for a permit */
+	public synchronized int getBacklog()
+	{
+		return backlog.size();
+	}
+
+	/**
+	 * Brings the number of available permits up to date. Must be called
+	 * within synchronization.
+	 */
+	private void refill()
+	{
+		long now = TimeUtils.nanoTime();
+		permits = Math.min(burst, permits + (double)(now - lastRefill) / permitInterval);
+		lastRefill = now;
+	}
+
+	/**
+	 * Adds the timed event that works through the backlog, if there isn't one
+	 * already. Must be called within synchronization.
+	 */
+	private void scheduleDrain()
+	{
+		if(draining)
+		{
+			return;
+		}
+		draining = true;
+		long wait = (long)Math.ceil((1.0 - permits) * permitInterval);
+		TimeUtils.addTimedEvent(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		}, Math.max(0, wait), TimeUnit.NANOSECONDS, inEventThread);
+	}
+
+	/**
+	 * Runs as many actions from the backlog as there are permits for.
+	 */
+	private void drain()
+	{
+		LinkedList<Runnable> ready = new LinkedList<Runnable>();
+		synchronized(this)
+		{
+			draining = false;
+			refill();
+			while(!backlog.isEmpty() && permits >= 1.0)
+			{
+				permits -= 1.0;
+				ready.add(backlog.removeFirst());
+			}
+			if(!backlog.isEmpty())
+			{
+				scheduleDrain();
+			}
+		}
+		for(Runnable r : ready)
+		{
+			try
+			{
+				r.run();
+			}
+			catch(Throwable t)
+			{
+				// Don't let one failure stop the others
+				TimeUtils.reportError(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,1119 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs events at particular times. The static methods in {@link TimeUtils}
+ * use a default scheduler; create others if you need separate settings.
+ * <p>
+ * A scheduler has one or more shards, each with its own timer thread and
+ * queue. Events with a key (see
+ * {@link #addSerialTimedEvent(Runnable, long, Object)}) always go to the
+ * same shard, so they stay in order; other events are spread across shards
+ * in turn. With one shard, all events run in the order they fall due.
+ * <p>
+ * Threads don't start until the first event is added. They are not daemon
+ * threads, so call {@link #shutdown()} or {@link #drain(long)} once the
+ * scheduler is no longer needed if the JVM is to exit by itself.
+ */
+public class Scheduler
+{
+	/** Name, used for threads */
+	private final String name;
+
+	/** Shards, each with its own thread */
+	private final TimerShard[] shards;
+
+	/** Used to spread events without a key across shards */
+	private final AtomicInteger nextShard = new AtomicInteger();
+
+	/** Mask for the low bits of an event ID, which give its shard */
+	private final int shardMask;
+
+	/** Error handler */
+	private volatile ErrorHandler errorHandler;
+
+	/** Pool that runs non-Swing events; null to run them on the timer thread */
+	private ExecutorService dispatchPool;
+
+	/** Dispatcher using dispatchPool */
+	private volatile KeyedExecutor dispatcher;
+
+	/** Clock used for scheduling */
+	private volatile TimeUtils.Clock clock = TimeUtils.SYSTEM_CLOCK;
+
+	/** Statistics being collected; null if metrics are turned off */
+	private volatile Metrics metrics;
+
+	/** Events taking longer than this (nanoseconds) are reported; 0 = off */
+	private volatile long slowEventThreshold;
+
+	/**
+	 * Share of dead entries at which a shard's queue is rebuilt; 0 if
+	 * cancelled events are removed from the queue straight away
+	 */
+	private volatile double compactThreshold;
+
+	/**
+	 * Background events are deferred when the scheduler is this late
+	 * (nanoseconds); 0 = off
+	 */
+	private volatile long overloadThreshold;
+
+	/** Time until which the scheduler counts as overloaded */
+	private volatile long overloadedUntil = Long.MIN_VALUE;
+
+	/** Scheduler states */
+	static final int RUNNING = 0, DRAINING = 1, STOPPED = 2;
+
+	/** Current state */
+	private volatile int state = RUNNING;
+
+	/**
+	 * Creates a scheduler. Its threads start when the first event is added.
+	 * @param name Name used for the scheduler's threads
+	 * @param shards Number of timer threads; use more than one if a single
+	 *   thread can't keep up with the number of events
+	 * @throws IllegalArgumentException If shards is not positive
+	 */
+	public Scheduler(String name, int shards)
+	{
+		if(shards <= 0)
+		{
+			throw new IllegalArgumentException("Need at least one shard");
+		}
+		this.name = name;
+		this.shards = new TimerShard[shards];
+		int shardBits = 32 - Integer.numberOfLeadingZeros(shards - 1);
+		shardMask = (1 << shardBits) - 1;
+		for(int i=0; i<shards; i++)
+		{
+			this.shards[i] = new TimerShard(this,
+				name + " thread" + (shards == 1 ? "" : " " + (i+1)), i, shardBits);
+		}
+	}
+
+	/** @return Current state: RUNNING, DRAINING or STOPPED */
+	int getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Stops the scheduler. Pending events are discarded, repeating events stop
+	 * and the timer threads finish. Events already handed to a dispatch pool
+	 * or the user-interface event thread are allowed to complete. No new
+	 * events can be added afterwards.
+	 */
+	public void shutdown()
+	{
+		state = STOPPED;
+		wake();
+		setDispatchPool(null);
+		for(TimerShard shard : shards)
+		{
+			shard.pending.clear();
+		}
+	}
+
+	/**
+	 * Stops the scheduler once pending events have run. No new events can be
+	 * added and repeating events are cancelled, but one-off events still run
+	 * when they fall due. This method waits for them, and for any dispatch
+	 * pool to finish, up to the given timeout; it then shuts the scheduler
+	 * down (see {@link #shutdown()}) whether or not everything has run.
+	 * User-interface events are handed to the event thread but not waited
+	 * for.
+	 * @param lTimeout Maximum time to wait in milliseconds
+	 * @return True if everything ran, false if the timeout expired first
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean drain(long lTimeout) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lTimeout);
+		synchronized(this)
+		{
+			if(state == RUNNING)
+			{
+				state = DRAINING;
+			}
+		}
+		for(TimerShard shard : shards)
+		{
+			for(TimedEvent te : shard.pending.values())
+			{
+				if(te.period != 0)
+				{
+					cancelTimedEvent(te.id);
+				}
+			}
+		}
+		wake();
+
+		boolean done = true;
+		for(TimerShard shard : shards)
+		{
+			done &= shard.awaitStop(deadline);
+		}
+		if(done)
+		{
+			ExecutorService pool;
+			synchronized(this)
+			{
+				pool = dispatchPool;
+			}
+			if(pool != null)
+			{
+				pool.shutdown();
+				done = pool.awaitTermination(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+			}
+		}
+		shutdown();
+		return done;
+	}
+
+	/** @return True once {@link #shutdown()} or {@link #drain(long)} is called */
+	public boolean isShutdown()
+	{
+		return state != RUNNING;
+	}
+
+	/** @return Number of shards (timer threads) */
+	public int getShards()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Sets the error handler used if an error occurs during a timed event.
+	 * @param eh Handler
+	 */
+	public void setErrorHandler(ErrorHandler eh)
+	{
+		errorHandler = eh;
+	}
+
+	/**
+	 * Turns timer metrics on or off. While on, the scheduler records how late
+	 * each event starts and how long it takes to run, along with the number
+	 * of cancellations; see {@link #getMetrics()}. Turning metrics on also
+	 * resets them. The overhead is two clock reads and a few atomic
+	 * increments per event.
+	 * @param enabled True to collect metrics
+	 */
+	public void setMetricsEnabled(boolean enabled)
+	{
+		metrics = enabled ? new Metrics(clock.nanoTime()) : null;
+	}
+
+	/**
+	 * Obtains timer metrics collected since they were turned on with
+	 * {@link #setMetricsEnabled(boolean)}.
+	 * @return Snapshot of current metrics, or null if metrics are turned off
+	 */
+	public TimerMetrics getMetrics()
+	{
+		Metrics m = metrics;
+		if(m == null)
+		{
+			return null;
+		}
+		int pending = 0;
+		for(TimerShard shard : shards)
+		{
+			pending += shard.pending.size();
+		}
+		return new TimerMetrics(pending, m.lag, m.laneLag,
+			m.swingDuration, m.otherDuration, m.cancellations.get(),
+			m.slowEvents.get(), m.deferred.get(), clock.nanoTime() - m.start);
+	}
+
+	/**
+	 * Sets a threshold for reporting slow events. Any event that takes longer
+	 * than this to run is reported to the error handler as a
+	 * {@link TimeUtils.SlowEventException}. This works whether or not metrics
+	 * are turned on.
+	 * @param lThreshold Threshold in milliseconds; 0 to turn off reporting
+	 */
+	public void setSlowEventThreshold(long lThreshold)
+	{
+		slowEventThreshold = TimeUnit.MILLISECONDS.toNanos(lThreshold);
+	}
+
+	/** Statistics being collected */
+	private static class Metrics
+	{
+		private final long start;
+		private final TimerMetrics.Histogram lag = new TimerMetrics.Histogram(),
+			swingDuration = new TimerMetrics.Histogram(),
+			otherDuration = new TimerMetrics.Histogram();
+		private final TimerMetrics.Histogram[] laneLag =
+			new TimerMetrics.Histogram[TimeUtils.Priority.values().length];
+		private final AtomicLong cancellations = new AtomicLong(),
+			slowEvents = new AtomicLong(), deferred = new AtomicLong();
+
+		private Metrics(long start)
+		{
+			this.start = start;
+			for(int i=0; i<laneLag.length; i++)
+			{
+				laneLag[i] = new TimerMetrics.Histogram();
+			}
+		}
+	}
+
+	/**
+	 * Sets a threshold for deferring background events under overload. When
+	 * an event starts more than this much later than it was due, the
+	 * scheduler counts as overloaded for the same length of time afterwards.
+	 * While it is overloaded, events with {@link TimeUtils.Priority#BACKGROUND}
+	 * priority that fall due are put back in the queue for this much longer
+	 * rather than run; for fixed-rate events, that run is skipped.
+	 * Deferred events are counted in the metrics.
+	 * @param lThreshold Threshold in milliseconds; 0 to never defer events
+	 *   (the default)
+	 */
+	public void setOverloadThreshold(long lThreshold)
+	{
+		overloadThreshold = TimeUnit.MILLISECONDS.toNanos(lThreshold);
+	}
+
+	/**
+	 * Decides whether a background event that has fallen due should be
+	 * deferred, and counts it if so.
+	 * @param now Current time
+	 * @param due Time the event was due
+	 * @return Delay to defer it by (nanoseconds), or 0 to run it now
+	 */
+	long deferBackground(long now, long due)
+	{
+		long threshold = overloadThreshold;
+		if(threshold == 0 || (now - due <= threshold && now >= overloadedUntil))
+		{
+			return 0;
+		}
+		Metrics m = metrics;
+		if(m != null)
+		{
+			m.deferred.incrementAndGet();
+		}
+		return threshold;
+	}
+
+	/**
+	 * Sets the clock used for scheduling. Events that are already pending
+	 * keep the same delay relative to the new clock. This is meant for
+	 * configuration and tests; events added by other threads while the clock
+	 * is being changed may not be adjusted correctly.
+	 * @param c New clock
+	 */
+	public void setClock(TimeUtils.Clock c)
+	{
+		TimeUtils.Clock old = clock;
+		final long oldNow = old.nanoTime(), newNow = c.nanoTime();
+		if(old instanceof TimeUtils.ManualClock)
+		{
+			((TimeUtils.ManualClock)old).detach(this);
+		}
+		clock = c;
+		if(c instanceof TimeUtils.ManualClock)
+		{
+			((TimeUtils.ManualClock)c).attach(this);
+		}
+		for(final TimerShard shard : shards)
+		{
+			shard.runOnTimerThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					shard.rebase(oldNow, newNow);
+				}
+			});
+		}
+	}
+
+	/** @return Current time on the scheduling clock, in nanoseconds */
+	long nanoTime()
+	{
+		return clock.nanoTime();
+	}
+
+	/** Wakes all timer threads so that they check the clock again */
+	void wake()
+	{
+		for(TimerShard shard : shards)
+		{
+			shard.wake();
+		}
+	}
+
+	/**
+	 * Waits until every timer thread has taken in the events and
+	 * cancellations submitted so far. Benchmarks use this so that the time
+	 * the threads take to keep up is counted.
+	 */
+	void awaitSubmissions()
+	{
+		for(TimerShard shard : shards)
+		{
+			shard.awaitSubmissions();
+		}
+	}
+
+	/**
+	 * Switches to hashed timing wheels for storing pending events. Adding and
+	 * cancelling events then takes constant time regardless of the number
+	 * pending, at the cost of precision: events may run up to one tick late.
+	 * Use this if very large numbers of events (e.g. per-connection timeouts)
+	 * are pending at once. Any events already pending are moved across. Each
+	 * shard has its own wheel.
+	 * @param tickLength Tick resolution in milliseconds
+	 * @param wheelSize Number of buckets in the wheel; events up to
+	 *   tickLength*wheelSize milliseconds ahead are spread across different
+	 *   buckets
+	 * @throws IllegalArgumentException If either value is not positive
+	 */
+	public void useTimingWheel(long tickLength, int wheelSize)
+	{
+		for(final TimerShard shard : shards)
+		{
+			final TimerQueue wheel = new TimingWheel(
+				TimeUnit.MILLISECONDS.toNanos(tickLength), wheelSize, clock.nanoTime());
+			shard.runOnTimerThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					shard.setQueue(wheel);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Turns lazy cancellation on or off. Normally a cancelled event is taken
+	 * out of the queue as soon as the timer thread next wakes. With lazy
+	 * cancellation, the event is only marked as cancelled and left in the
+	 * queue, to be skipped when it falls due. Once dead entries make up the
+	 * given share of a queue, the timer thread rebuilds it without them while
+	 * it has nothing else to do. This reduces the work per cancellation when
+	 * most events are cancelled (e.g. timeouts that rarely expire), at the
+	 * cost of keeping cancelled events in memory for longer.
+	 * @param threshold Share of dead entries (between 0 and 1) at which the
+	 *   queue is rebuilt, or 0 to remove cancelled events immediately (the
+	 *   default)
+	 * @throws IllegalArgumentException If threshold is not between 0 and 1
+	 */
+	public void setLazyCancellation(double threshold)
+	{
+		if(!(threshold >= 0.0 && threshold <= 1.0))
+		{
+			throw new IllegalArgumentException("Invalid threshold");
+		}
+		compactThreshold = threshold;
+	}
+
+	/**
+	 * @return Share of dead entries at which a queue is rebuilt, or 0 if lazy
+	 *   cancellation is off
+	 */
+	double getCompactThreshold()
+	{
+		return compactThreshold;
+	}
+
+	/**
+	 * Sets the number of threads used to run events that aren't in the
+	 * user-interface event thread. By default (0) these events run one at a
+	 * time on the timer thread, so a slow event delays everything else that
+	 * is due. With a pool, the timer thread only decides when events are due
+	 * and the pool runs them, several at once. Events added with
+	 * {@link #addSerialTimedEvent(Runnable, long, Object)} still run in order
+	 * relative to others with the same key.
+	 * <p>
+	 * If there was a previous pool, events already handed to it are allowed
+	 * to finish.
+	 * @param threads Number of threads, or 0 to run events on the timer
+	 *   thread
+	 */
+	public void setDispatchThreads(int threads)
+	{
+		if(threads > 0)
+		{
+			setDispatchPool(Executors.newFixedThreadPool(threads,
+				new ThreadFactory()
+				{
+					private int count = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, name + " dispatch " + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				}));
+		}
+		else
+		{
+			setDispatchPool(null);
+		}
+	}
+
+	/**
+	 * Runs each event that isn't in the user-interface event thread on its
+	 * own virtual thread. This suits events that block (e.g. on network I/O)
+	 * as they no longer hold up other events. Events added with
+	 * {@link #addSerialTimedEvent(Runnable, long, Object)} still run in order
+	 * relative to others with the same key, and errors are reported in the
+	 * usual way.
+	 * <p>
+	 * Virtual threads are only available on Java 21 and above. On earlier
+	 * versions this method does nothing and returns false. Call
+	 * {@link #setDispatchThreads(int)} to turn it off again.
+	 * @return True if virtual threads are now in use
+	 */
+	public boolean useVirtualThreads()
+	{
+		ExecutorService pool;
+		try
+		{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			pool = (ExecutorService)m.invoke(null);
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+		setDispatchPool(pool);
+		return true;
+	}
+
+	/**
+	 * Changes the pool used to run events that aren't in the user-interface
+	 * event thread. The previous pool, if any, is shut down after finishing
+	 * events already handed to it.
+	 * @param pool New pool, or null to run events on the timer thread
+	 */
+	private void setDispatchPool(ExecutorService pool)
+	{
+		ExecutorService oldPool;
+		synchronized(this)
+		{
+			oldPool = dispatchPool;
+			dispatchPool = pool;
+			dispatcher = pool == null ? null : new KeyedExecutor(pool);
+		}
+		if(oldPool != null)
+		{
+			oldPool.shutdown();
+		}
+	}
+
+	/** @return Current dispatcher, or null to run events on the timer thread */
+	KeyedExecutor getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	/**
+	 * Add a new timed event, which occurs after a certain delay.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addTimedEvent(Runnable r, long lDelay, boolean inEventThread)
+	{
+		return addTimedEvent(new TimedEvent(), r,
+			TimeUnit.MILLISECONDS.toNanos(lDelay), inEventThread, null);
+	}
+
+	/**
+	 * Add a new timed event, which occurs after a delay in any unit. Use this
+	 * for delays that need better than millisecond precision.
+	 * @param r Event code
+	 * @param delay Delay
+	 * @param unit Units of delay
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addTimedEvent(Runnable r, long delay, TimeUnit unit,
+		boolean inEventThread)
+	{
+		return addTimedEvent(new TimedEvent(), r, unit.toNanos(delay),
+			inEventThread, null);
+	}
+
+	/**
+	 * Add a new timed event with a given priority. Of the events that fall
+	 * due together, those with higher priority are run (or handed to the
+	 * dispatch pool or user-interface event thread) first. Background events
+	 * may be deferred if the scheduler is overloaded; see
+	 * {@link #setOverloadThreshold(long)}.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param priority Priority
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If priority is null
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addTimedEvent(Runnable r, long lDelay,
+		TimeUtils.Priority priority, boolean inEventThread)
+	{
+		checkPriority(priority);
+		TimedEvent te = new TimedEvent();
+		te.priority = priority;
+		return addTimedEvent(te, r, TimeUnit.MILLISECONDS.toNanos(lDelay),
+			inEventThread, null);
+	}
+
+	/**
+	 * Add a new timed event that must not run at the same time as other events
+	 * with the same key. Events with the same key always use the same shard
+	 * and run one after another in the order they fall due, while events with
+	 * different keys (e.g. for different connections) can run in parallel
+	 * when there is a dispatch pool (see {@link #setDispatchThreads(int)}).
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param key Key (e.g. the connection the event relates to)
+	 * @return Unique ID for the event
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addSerialTimedEvent(Runnable r, long lDelay, Object key)
+	{
+		return addTimedEvent(new TimedEvent(), r,
+			TimeUnit.MILLISECONDS.toNanos(lDelay), false, key);
+	}
+
+	/**
+	 * Add a new timed event that runs in the user-interface event thread and
+	 * replaces other such events with the same key. If several events with
+	 * the same key fall due together, only the last of them runs. This suits
+	 * updates where only the latest matters, such as repainting a status
+	 * display.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param coalesceKey Key identifying redundant events
+	 * @return Unique ID for the event
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addCoalescingTimedEvent(Runnable r, long lDelay,
+		Object coalesceKey)
+	{
+		TimedEvent te = new TimedEvent();
+		te.coalesceKey = coalesceKey;
+		return addTimedEvent(te, r, TimeUnit.MILLISECONDS.toNanos(lDelay), true,
+			null);
+	}
+
+	/**
+	 * Add a repeating event which waits a fixed delay between the end of one
+	 * run and the start of the next. The same entry is reused for every run.
+	 * Cancel it with {@link #cancelTimedEvent(int)}.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Delay between the end of one run and the start of the next
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addPeriodicEvent(Runnable r, long lInitialDelay,
+		long lPeriod, boolean inEventThread)
+	{
+		return addPeriodicEvent(r, lInitialDelay, lPeriod, false, null,
+			TimeUtils.Priority.NORMAL, inEventThread);
+	}
+
+	/**
+	 * Add a repeating event with a given priority, which waits a fixed delay
+	 * between the end of one run and the start of the next. Use this for
+	 * housekeeping tasks that can wait if the system is busy, with
+	 * {@link TimeUtils.Priority#BACKGROUND}.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Delay between the end of one run and the start of the next
+	 * @param priority Priority; see
+	 *   {@link #addTimedEvent(Runnable, long, TimeUtils.Priority, boolean)}
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive, or priority
+	 *   is null
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addPeriodicEvent(Runnable r, long lInitialDelay,
+		long lPeriod, TimeUtils.Priority priority, boolean inEventThread)
+	{
+		return addPeriodicEvent(r, lInitialDelay, lPeriod, false, null,
+			priority, inEventThread);
+	}
+
+	/**
+	 * Add a repeating event which is due at fixed intervals, regardless of how
+	 * long each run takes. The same entry is reused for every run, and runs
+	 * never overlap with each other. Cancel it with
+	 * {@link #cancelTimedEvent(int)}.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Interval between due times
+	 * @param policy What to do about runs that are missed because the event
+	 *   fell behind
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int addFixedRateEvent(Runnable r, long lInitialDelay,
+		long lPeriod, TimeUtils.MissedTickPolicy policy, boolean inEventThread)
+	{
+		return addPeriodicEvent(r, lInitialDelay, lPeriod, true, policy,
+			TimeUtils.Priority.NORMAL, inEventThread);
+	}
+
+	private int addPeriodicEvent(Runnable r, long lInitialDelay,
+		long lPeriod, boolean fixedRate, TimeUtils.MissedTickPolicy policy,
+		TimeUtils.Priority priority, boolean inEventThread)
+	{
+		if(lPeriod <= 0)
+		{
+			throw new IllegalArgumentException("Period must be positive");
+		}
+		checkPriority(priority);
+		TimedEvent te = new TimedEvent();
+		te.period = TimeUnit.MILLISECONDS.toNanos(lPeriod);
+		te.fixedRate = fixedRate;
+		te.missedTickPolicy = policy;
+		te.priority = priority;
+		return addTimedEvent(te, r, TimeUnit.MILLISECONDS.toNanos(lInitialDelay),
+			inEventThread, null);
+	}
+
+	private int addTimedEvent(TimedEvent te, Runnable r,
+		long delayNanos, boolean inEventThread, Object key)
+	{
+		if(state != RUNNING)
+		{
+			throw new IllegalStateException("Scheduler has been shut down");
+		}
+		te.r = r;
+		te.due = dueTime(clock.nanoTime(), delayNanos);
+		te.inEventThread = inEventThread;
+		te.key = key;
+		te.shard = pickShard(key != null ? key : te.coalesceKey);
+		te.id = te.shard.nextId();
+
+		te.shard.pending.put(te);
+		te.shard.submit(te);
+
+		return te.id;
+	}
+
+	/**
+	 * Add many timed events at once. This is quicker than adding them one at
+	 * a time: the clock is read once, and each timer thread is woken at most
+	 * once for the whole batch.
+	 * @param r Event code for each event
+	 * @param lDelays Delay for each event
+	 * @param inEventThread If true, runs events in the user-interface event
+	 *   thread
+	 * @return Unique IDs for the events, in the same order
+	 * @throws IllegalArgumentException If the arrays are different lengths
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public int[] addTimedEvents(Runnable[] r, long[] lDelays,
+		boolean inEventThread)
+	{
+		if(r.length != lDelays.length)
+		{
+			throw new IllegalArgumentException("Array lengths differ");
+		}
+		if(state != RUNNING)
+		{
+			throw new IllegalStateException("Scheduler has been shut down");
+		}
+		long now = clock.nanoTime();
+		int[] ids = new int[r.length];
+		long[] earliest = new long[shards.length];
+		boolean[] used = new boolean[shards.length];
+		// One atomic step to spread the whole batch across shards
+		int next = shards.length == 1 ? 0 : nextShard.getAndAdd(r.length);
+		for(int i=0; i<r.length; i++)
+		{
+			TimedEvent te = new TimedEvent();
+			te.r = r[i];
+			te.due = dueTime(now, TimeUnit.MILLISECONDS.toNanos(lDelays[i]));
+			te.inEventThread = inEventThread;
+			int index = ((next + i) & 0x7fffffff) % shards.length;
+			te.shard = shards[index];
+			te.id = te.shard.nextId();
+			te.shard.pending.put(te);
+			te.shard.submitQuietly(te);
+			if(!used[index] || te.due < earliest[index])
+			{
+				used[index] = true;
+				earliest[index] = te.due;
+			}
+			ids[i] = te.id;
+		}
+		for(int i=0; i<shards.length; i++)
+		{
+			if(used[i])
+			{
+				shards[i].wakeFor(earliest[i]);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Checks a priority before it gets as far as the timer thread, which
+	 * relies on it not being null.
+	 * @param priority Priority
+	 * @throws IllegalArgumentException If priority is null
+	 */
+	private static void checkPriority(TimeUtils.Priority priority)
+	{
+		if(priority == null)
+		{
+			throw new IllegalArgumentException("Priority must not be null");
+		}
+	}
+
+	/**
+	 * Chooses the shard for a new event.
+	 * @param key Key, or null if the event can go on any shard
+	 * @return Shard
+	 */
+	private TimerShard pickShard(Object key)
+	{
+		if(shards.length == 1)
+		{
+			return shards[0];
+		}
+		int hash;
+		if(key == null)
+		{
+			hash = nextShard.getAndIncrement();
+		}
+		else
+		{
+			// Spread the bits so that keys with poor hash codes still get mixed
+			hash = key.hashCode();
+			hash ^= (hash >>> 16);
+			hash *= 0x45d9f3b;
+			hash ^= (hash >>> 16);
+		}
+		return shards[(hash & 0x7fffffff) % shards.length];
+	}
+
+	/**
+	 * Cancel an existing timed event. Events are looked up by ID, so this
+	 * doesn't get slower as more events are pending. Repeating events stop
+	 * repeating; if one is running at the time, that run completes.
+	 * @param id ID of event
+	 */
+	public void cancelTimedEvent(int id)
+	{
+		int shard = id & shardMask;
+		if(shard >= shards.length)
+		{
+			// Not one of this scheduler's IDs
+			return;
+		}
+		TimedEvent te = shards[shard].pending.remove(id);
+		if(te != null)
+		{
+			Metrics m = metrics;
+			if(m != null)
+			{
+				m.cancellations.incrementAndGet();
+			}
+			if(compactThreshold > 0)
+			{
+				te.shard.markDead(te);
+			}
+			else
+			{
+				te.cancelled = true;
+				te.shard.cancel(te);
+			}
+		}
+	}
+
+	/**
+	 * Creates a future that completes with the given value after a delay.
+	 * Cancelling the future cancels the timed event.
+	 * @param value Value
+	 * @param lDelay Delay
+	 * @return New future
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public <T> CompletableFuture<T> completeAfter(T value, long lDelay)
+	{
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		guard(future, value, null, lDelay);
+		return future;
+	}
+
+	/**
+	 * Completes a future with a {@link TimeoutException} if it hasn't
+	 * completed within the given time. If the future completes first, the
+	 * timed event is cancelled straight away so it doesn't stay in the queue.
+	 * @param future Future
+	 * @param lTimeout Timeout
+	 * @return The same future
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future,
+		long lTimeout)
+	{
+		guard(future, null, new TimeoutException(), lTimeout);
+		return future;
+	}
+
+	/**
+	 * Completes a future with the given value if it hasn't completed within
+	 * the given time. If the future completes first, the timed event is
+	 * cancelled straight away so it doesn't stay in the queue.
+	 * @param future Future
+	 * @param value Value to use after the timeout
+	 * @param lTimeout Timeout
+	 * @return The same future
+	 * @throws IllegalStateException If the scheduler has been shut down
+	 */
+	public <T> CompletableFuture<T> completeOnTimeout(
+		CompletableFuture<T> future, T value, long lTimeout)
+	{
+		guard(future, value, null, lTimeout);
+		return future;
+	}
+
+	/**
+	 * Adds a timed event that completes a future, and which is cancelled if
+	 * the future completes first.
+	 * @param future Future
+	 * @param value Value to complete with, if error is null
+	 * @param error Error to complete with, or null
+	 * @param lDelay Delay
+	 */
+	private <T> void guard(CompletableFuture<T> future, T value,
+		Throwable error, long lDelay)
+	{
+		if(future.isDone())
+		{
+			return;
+		}
+		FutureTimeout<T> timeout = new FutureTimeout<T>(future, value, error);
+		timeout.id = addTimedEvent(timeout, lDelay, false);
+		// Runs at once if the future completed in the meantime
+		future.whenComplete(timeout);
+	}
+
+	/**
+	 * Timed event that completes a future. The same object is registered on
+	 * the future so that completing it cancels the event, without needing
+	 * another closure.
+	 */
+	private class FutureTimeout<T> implements Runnable,
+		BiConsumer<T, Throwable>
+	{
+		private final CompletableFuture<T> future;
+		private final T value;
+		private final Throwable error;
+		private int id;
+
+		private FutureTimeout(CompletableFuture<T> future, T value,
+			Throwable error)
+		{
+			this.future = future;
+			this.value = value;
+			this.error = error;
+		}
+
+		@Override
+		public void run()
+		{
+			if(error != null)
+			{
+				future.completeExceptionally(error);
+			}
+			else
+			{
+				future.complete(value);
+			}
+		}
+
+		@Override
+		public void accept(T result, Throwable t)
+		{
+			// Does nothing if this event already ran
+			cancelTimedEvent(id);
+		}
+	}
+
+	/**
+	 * Takes a one-off event out of the ID index as it is about to run.
+	 * @param te Event
+	 * @return True if the event is to run; false if it was cancelled
+	 */
+	boolean removePending(TimedEvent te)
+	{
+		return te.shard.pending.remove(te);
+	}
+
+	/**
+	 * @param now Current time in nanoseconds
+	 * @param delayNanos Delay in nanoseconds
+	 * @return Time at which an event is due, saturating rather than
+	 *   overflowing for very long delays
+	 */
+	static long dueTime(long now, long delayNanos)
+	{
+		long due = now + delayNanos;
+		if(delayNanos > 0 && due < now)
+		{
+			return Long.MAX_VALUE;
+		}
+		return due;
+	}
+
+	/**
+	 * Runs an event, recording metrics if required. If it is a repeating
+	 * event, it is then put back in the queue for its next run.
+	 * @param te Event
+	 * @param due Time this run was due
+	 */
+	void runTimedEvent(TimedEvent te, long due)
+	{
+		// A repeating event cancelled while this run waited to start
+		if(te.period == 0 || !te.cancelled)
+		{
+			runMeasured(te, due);
+		}
+		if(te.period != 0)
+		{
+			finishRun(te);
+		}
+	}
+
+	/**
+	 * Runs an event, recording metrics if required.
+	 * @param te Event
+	 * @param due Time this run was due
+	 */
+	private void runMeasured(TimedEvent te, long due)
+	{
+		Metrics m = metrics;
+		long threshold = slowEventThreshold, overload = overloadThreshold;
+		if(m == null && threshold == 0 && overload == 0)
+		{
+			runEvent(te.r);
+		}
+		else
+		{
+			long start = clock.nanoTime();
+			if(overload != 0 && start - due > overload)
+			{
+				overloadedUntil = start + overload;
+			}
+			runEvent(te.r);
+			long duration = clock.nanoTime() - start;
+			if(m != null)
+			{
+				m.lag.record(start - due);
+				m.laneLag[te.priority.ordinal()].record(start - due);
+				(te.inEventThread ? m.swingDuration : m.otherDuration).record(duration);
+			}
+			if(threshold != 0 && duration > threshold)
+			{
+				if(m != null)
+				{
+					m.slowEvents.incrementAndGet();
+				}
+				reportError(new TimeUtils.SlowEventException(te.r, duration));
+			}
+		}
+	}
+
+	/**
+	 * Puts a repeating event back in the queue once a run has finished,
+	 * unless it has been cancelled. Fixed-rate events apply their missed-tick
+	 * policy here, so a run that takes longer than the period is followed by
+	 * at most one more, not a queue of them.
+	 * @param te Event
+	 */
+	private void finishRun(TimedEvent te)
+	{
+		te.inFlight = false;
+		if(te.cancelled)
+		{
+			// It never went back in the queue
+			te.shard.dropDead(te);
+			return;
+		}
+		long now = clock.nanoTime();
+		te.due = te.fixedRate ? TimerShard.nextFixedRate(te, now)
+			: dueTime(now, te.period);
+		te.shard.submit(te);
+	}
+
+	/**
+	 * Runs an event, reporting any error.
+	 * @param r Event code
+	 */
+	void runEvent(Runnable r)
+	{
+		try
+		{
+			r.run();
+		}
+		catch(Throwable t)
+		{
+			reportError(t);
+		}
+	}
+
+	/**
+	 * Reports an error to the error handler, if there is one.
+	 * @param t Error
+	 */
+	void reportError(Throwable t)
+	{
+		ErrorHandler eh = errorHandler;
+		if(eh!=null)
+		{
+			eh.reportError(t);
+		}
+		else
+		{
+			t.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an action at most once per interval, however often it is triggered.
+ * The first trigger runs the action straight away (via TimeUtils); triggers
+ * during the following interval are gathered into a single run at the end
+ * of it. At most one timed event is pending at any time.
+ */
+public class Throttler
+{
+	private final Runnable r;
+	private final long interval;
+	private final boolean inEventThread;
+
+	/** Time the action last started */
+	private long lastRun;
+
+	/** True if it has run at all */
+	private boolean hasRun;
+
+	/** Token for the pending timed event, or null if none */
+	private Object pending;
+
+	/** ID of the pending timed event */
+	private int pendingID;
+
+	/**
+	 * @param r Action to run
+	 * @param lInterval Minimum time between runs (milliseconds)
+	 * @param inEventThread If true, runs action in the user-interface event
+	 *   thread
+	 */
+	public Throttler(Runnable r, long lInterval, boolean inEventThread)
+	{
+		this.r = r;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(lInterval);
+		this.inEventThread = inEventThread;
+	}
+
+	/**
+	 * Requests that the action runs. If it hasn't run in the last interval it
+	 * runs immediately; otherwise it runs once the interval is up.
+	 */
+	public synchronized void trigger()
+	{
+		if(pending != null)
+		{
+			// Already going to run
+			return;
+		}
+		long wait = 0;
+		if(hasRun)
+		{
+			wait = Math.max(0, lastRun + interval - TimeUtils.nanoTime());
+		}
+
+		final Object token = new Object();
+		pending = token;
+		pendingID = TimeUtils.addTimedEvent(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fire(token);
+			}
+		}, wait, TimeUnit.NANOSECONDS, inEventThread);
+	}
+
+	/**
+	 * Cancels the action if it is waiting to run.
+	 */
+	public synchronized void cancel()
+	{
+		if(pending != null)
+		{
+			TimeUtils.cancelTimedEvent(pendingID);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Called when the timed event falls due.
+	 * @param token Token for the event
+	 */
+	private void fire(Object token)
+	{
+		synchronized(this)
+		{
+			if(pending != token)
+			{
+				// Cancelled
+				return;
+			}
+			pending = null;
+			lastRun = TimeUtils.nanoTime();
+			hasRun = true;
+		}
+		r.run();
+	}
+}
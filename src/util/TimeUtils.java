@@ -19,43 +19,257 @@ Copyright 2011 Samuel Marshall.
 package util;
 
 import java.util.*;
-
-import javax.swing.SwingUtilities;
+import java.util.concurrent.*;
 
 /**
  * Time-related utilities.
+ * <p>
+ * The timed event methods use a default {@link Scheduler}. It has one timer
+ * thread unless the system property <tt>util.timer.shards</tt> is set to a
+ * larger number before this class is first used. The thread doesn't start
+ * until the first event is added; to stop it, call
+ * <tt>getScheduler().shutdown()</tt>.
  */
 public abstract class TimeUtils
 {
-	/** Synchronization */
-	private static Object synch=new Object();
+	/**
+	 * Sets the error handler used if an error occurs during a timed event.
+	 * @param eh Handler
+	 */
+	public static void setErrorHandler(ErrorHandler eh)
+	{
+		scheduler.setErrorHandler(eh);
+	}
+	
+	/**
+	 * Turns timer metrics on or off. While on, TimeUtils records how late each
+	 * event starts and how long it takes to run, along with the number of
+	 * cancellations; see {@link #getMetrics()}. Turning metrics on also resets
+	 * them. The overhead is two clock reads and a few atomic increments per
+	 * event.
+	 * @param enabled True to collect metrics
+	 */
+	public static void setMetricsEnabled(boolean enabled)
+	{
+		scheduler.setMetricsEnabled(enabled);
+	}
+	
+	/**
+	 * Obtains timer metrics collected since they were turned on with
+	 * {@link #setMetricsEnabled(boolean)}.
+	 * @return Snapshot of current metrics, or null if metrics are turned off
+	 */
+	public static TimerMetrics getMetrics()
+	{
+		return scheduler.getMetrics();
+	}
+	
+	/**
+	 * Sets a threshold for reporting slow events. Any event that takes longer
+	 * than this to run is reported to the error handler (see
+	 * {@link #setErrorHandler(ErrorHandler)}) as a {@link SlowEventException}.
+	 * This works whether or not metrics are turned on.
+	 * @param lThreshold Threshold in milliseconds; 0 to turn off reporting
+	 */
+	public static void setSlowEventThreshold(long lThreshold)
+	{
+		scheduler.setSlowEventThreshold(lThreshold);
+	}
+	
+	/**
+	 * Reported to the error handler when an event is slow.
+	 * @see TimeUtils#setSlowEventThreshold(long)
+	 */
+	public static class SlowEventException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private long duration;
+		
+		SlowEventException(Runnable r, long duration)
+		{
+			super("Timed event took " + TimeUnit.NANOSECONDS.toMillis(duration)
+				+ "ms: " + r);
+			this.duration = duration;
+		}
+		
+		/** @return Time the event took, in nanoseconds */
+		public long getDuration()
+		{
+			return duration;
+		}
+	}
+	
+	/**
+	 * Source of time for scheduling events. Times are in nanoseconds from an
+	 * arbitrary origin, as with System.nanoTime(); they must never go
+	 * backwards.
+	 */
+	public interface Clock
+	{
+		/** @return Current time in nanoseconds */
+		public long nanoTime();
+	}
 	
-	/** Events in queue */
-	private static SortedSet<TimedEvent> eventQueue=new TreeSet<TimedEvent>();
+	/**
+	 * Default clock, based on System.nanoTime(). This is monotonic, so
+	 * changes to the system time (e.g. NTP adjustments) don't make events
+	 * run early or late.
+	 */
+	public final static Clock SYSTEM_CLOCK = new Clock()
+	{
+		@Override
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+	};
 	
-	/** Error handler */
-	private static ErrorHandler errorHandler;
+	/** Scheduler used by the static methods; needs SYSTEM_CLOCK first */
+	private final static Scheduler scheduler = new Scheduler("TimeUtils",
+		Math.max(1, Integer.getInteger("util.timer.shards", 1)));
 	
-	// A static thread handles all timing
-	static
+	/**
+	 * Clock that only moves when told to. Useful for tests and benchmarks
+	 * that need to control exactly when events fall due. Events that become
+	 * due when the clock is advanced run on the timer threads as normal.
+	 */
+	public static class ManualClock implements Clock
 	{
-		(new Thread(new Runnable()
+		private long now;
+		
+		/** Schedulers using this clock */
+		private final List<Scheduler> schedulers =
+			new CopyOnWriteArrayList<Scheduler>();
+		
+		/**
+		 * @param start Initial time in nanoseconds
+		 */
+		public ManualClock(long start)
 		{
-			@Override
-			public void run()
+			now = start;
+		}
+		
+		@Override
+		public synchronized long nanoTime()
+		{
+			return now;
+		}
+		
+		/**
+		 * Moves the clock forward, then wakes the timer threads of any
+		 * schedulers using it.
+		 * @param delay Time to move forward
+		 * @param unit Units of delay
+		 * @throws IllegalArgumentException If delay is negative
+		 */
+		public void advance(long delay, TimeUnit unit)
+		{
+			if(delay < 0)
+			{
+				throw new IllegalArgumentException("Clock can't go backwards");
+			}
+			synchronized(this)
 			{
-				thread();
+				now += unit.toNanos(delay);
 			}
-		},"TimeUtils thread")).start();
+			for(Scheduler s : schedulers)
+			{
+				s.wake();
+			}
+		}
+		
+		/** @param s Scheduler that has started using this clock */
+		void attach(Scheduler s)
+		{
+			schedulers.add(s);
+		}
+		
+		/** @param s Scheduler that has stopped using this clock */
+		void detach(Scheduler s)
+		{
+			schedulers.remove(s);
+		}
 	}
 	
 	/**
-	 * Sets the error handler used if an error occurs during a timed event.
-	 * @param eh Handler
+	 * Sets the clock used for scheduling. Events that are already pending
+	 * keep the same delay relative to the new clock. This is meant for
+	 * configuration and tests; events added by other threads while the clock
+	 * is being changed may not be adjusted correctly.
+	 * @param c New clock
 	 */
-	public static void setErrorHandler(ErrorHandler eh)
+	public static void setClock(Clock c)
 	{
-		TimeUtils.errorHandler=eh;
+		scheduler.setClock(c);
+	}
+	
+	/** @return Current time on the scheduling clock, in nanoseconds */
+	static long nanoTime()
+	{
+		return scheduler.nanoTime();
+	}
+	
+	/**
+	 * @return Scheduler used by the static methods in this class
+	 */
+	public static Scheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Switches to hashed timing wheels for storing pending events. Adding and
+	 * cancelling events then takes constant time regardless of the number
+	 * pending, at the cost of precision: events may run up to one tick late.
+	 * Use this if very large numbers of events (e.g. per-connection timeouts)
+	 * are pending at once. Any events already pending are moved across.
+	 * @param tickLength Tick resolution in milliseconds
+	 * @param wheelSize Number of buckets in the wheel; events up to
+	 *   tickLength*wheelSize milliseconds ahead are spread across different
+	 *   buckets
+	 * @throws IllegalArgumentException If either value is not positive
+	 */
+	public static void useTimingWheel(long tickLength, int wheelSize)
+	{
+		scheduler.useTimingWheel(tickLength, wheelSize);
+	}
+	
+	/**
+	 * Sets the number of threads used to run events that aren't in the
+	 * user-interface event thread. By default (0) these events run one at a
+	 * time on the TimeUtils thread, so a slow event delays everything else
+	 * that is due. With a pool, the TimeUtils thread only decides when events
+	 * are due and the pool runs them, several at once. Events added with
+	 * {@link #addSerialTimedEvent(Runnable, long, Object)} still run in order
+	 * relative to others with the same key.
+	 * <p>
+	 * If there was a previous pool, events already handed to it are allowed
+	 * to finish.
+	 * @param threads Number of threads, or 0 to run events on the TimeUtils
+	 *   thread
+	 */
+	public static void setDispatchThreads(int threads)
+	{
+		scheduler.setDispatchThreads(threads);
+	}
+	
+	/**
+	 * Runs each event that isn't in the user-interface event thread on its
+	 * own virtual thread. This suits events that block (e.g. on network I/O)
+	 * as they no longer hold up other events. Events added with
+	 * {@link #addSerialTimedEvent(Runnable, long, Object)} still run in order
+	 * relative to others with the same key, and errors are reported in the
+	 * usual way.
+	 * <p>
+	 * Virtual threads are only available on Java 21 and above. On earlier
+	 * versions this method does nothing and returns false. Call
+	 * {@link #setDispatchThreads(int)} to turn it off again.
+	 * @return True if virtual threads are now in use
+	 */
+	public static boolean useVirtualThreads()
+	{
+		return scheduler.useVirtualThreads();
 	}
 	
 	/**
@@ -64,176 +278,253 @@ public abstract class TimeUtils
 	 * @param lDelay Delay
 	 * @param inEventThread If true, runs event in the user-interface event thread
 	 * @return Unique ID for the event
-	 */	 
+	 */
 	public static int addTimedEvent(Runnable r, long lDelay, boolean inEventThread)
 	{
-		synchronized(synch)
-		{
-			TimedEvent te = new TimedEvent();
-			te.r = r;
-			te.due = System.currentTimeMillis() + lDelay;
-			te.inEventThread = inEventThread;
-			
-			eventQueue.add(te);
-			
-			synch.notify();
-			
-			return te.id;
-		}		 
+		return scheduler.addTimedEvent(r, lDelay, inEventThread);
+	}
+	
+	/**
+	 * Add a new timed event, which occurs after a delay in any unit. Use this
+	 * for delays that need better than millisecond precision.
+	 * @param r Event code
+	 * @param delay Delay
+	 * @param unit Units of delay
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 */
+	public static int addTimedEvent(Runnable r, long delay, TimeUnit unit,
+		boolean inEventThread)
+	{
+		return scheduler.addTimedEvent(r, delay, unit, inEventThread);
+	}
+	
+	/**
+	 * Add many timed events at once. This is quicker than adding them one at
+	 * a time, as the TimeUtils thread is woken at most once.
+	 * @param r Event code for each event
+	 * @param lDelays Delay for each event
+	 * @param inEventThread If true, runs events in the user-interface event
+	 *   thread
+	 * @return Unique IDs for the events, in the same order
+	 * @throws IllegalArgumentException If the arrays are different lengths
+	 */
+	public static int[] addTimedEvents(Runnable[] r, long[] lDelays,
+		boolean inEventThread)
+	{
+		return scheduler.addTimedEvents(r, lDelays, inEventThread);
+	}
+	
+	/**
+	 * Add a new timed event that must not run at the same time as other events
+	 * with the same key. This only makes a difference when there is a dispatch
+	 * pool (see {@link #setDispatchThreads(int)}); events with the same key
+	 * then run one after another in the order they fall due, while events
+	 * with different keys (e.g. for different connections) can run in
+	 * parallel.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param key Key (e.g. the connection the event relates to)
+	 * @return Unique ID for the event
+	 */
+	public static int addSerialTimedEvent(Runnable r, long lDelay, Object key)
+	{
+		return scheduler.addSerialTimedEvent(r, lDelay, key);
+	}
+	
+	/**
+	 * Add a new timed event that runs in the user-interface event thread and
+	 * replaces other such events with the same key. If several events with
+	 * the same key fall due together, only the last of them runs. This suits
+	 * updates where only the latest matters, such as repainting a status
+	 * display.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param coalesceKey Key identifying redundant events
+	 * @return Unique ID for the event
+	 */
+	public static int addCoalescingTimedEvent(Runnable r, long lDelay,
+		Object coalesceKey)
+	{
+		return scheduler.addCoalescingTimedEvent(r, lDelay, coalesceKey);
+	}
+	
+	/**
+	 * What to do when a fixed-rate event falls behind, so that one or more
+	 * runs were due before the timer got round to it (for example because the
+	 * system is overloaded or the event takes longer than its period).
+	 */
+	public enum MissedTickPolicy
+	{
+		/** Run once now for all the missed runs, then continue on schedule */
+		COALESCE,
+		/** Drop the missed runs and wait for the next scheduled time */
+		SKIP,
+		/** Run once for each missed run, one after another, to catch up */
+		BURST
+	}
+	
+	/**
+	 * Priority lanes for events that fall due at the same time.
+	 */
+	public enum Priority
+	{
+		/** Latency-critical events (e.g. keepalive pings); run first */
+		CRITICAL,
+		/** Default priority */
+		NORMAL,
+		/**
+		 * Bulk or housekeeping work; runs last, and can be deferred when the
+		 * timer is overloaded
+		 */
+		BACKGROUND
+	}
+	
+	/**
+	 * Add a new timed event with a given priority. Of the events that fall
+	 * due together, those with higher priority are run first.
+	 * @param r Event code
+	 * @param lDelay Delay
+	 * @param priority Priority
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If priority is null
+	 * @see Scheduler#addTimedEvent(Runnable, long, Priority, boolean)
+	 */
+	public static int addTimedEvent(Runnable r, long lDelay, Priority priority,
+		boolean inEventThread)
+	{
+		return scheduler.addTimedEvent(r, lDelay, priority, inEventThread);
 	}
 	
 	/**
-	 * Cancel an existing timed event.
+	 * Add a repeating event with a given priority, which waits a fixed delay
+	 * between the end of one run and the start of the next.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Delay between the end of one run and the start of the next
+	 * @param priority Priority
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive, or priority
+	 *   is null
+	 * @see Scheduler#addPeriodicEvent(Runnable, long, long, Priority, boolean)
+	 */
+	public static int addPeriodicEvent(Runnable r, long lInitialDelay,
+		long lPeriod, Priority priority, boolean inEventThread)
+	{
+		return scheduler.addPeriodicEvent(r, lInitialDelay, lPeriod, priority,
+			inEventThread);
+	}
+	
+	/**
+	 * Sets a threshold for deferring background events when the timer is
+	 * overloaded.
+	 * @param lThreshold Threshold in milliseconds; 0 to never defer events
+	 * @see Scheduler#setOverloadThreshold(long)
+	 */
+	public static void setOverloadThreshold(long lThreshold)
+	{
+		scheduler.setOverloadThreshold(lThreshold);
+	}
+	
+	/**
+	 * Add a repeating event which waits a fixed delay between the end of one
+	 * run and the start of the next. The same entry is reused for every run.
+	 * Cancel it with {@link #cancelTimedEvent(int)}.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Delay between the end of one run and the start of the next
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive
+	 */
+	public static int addPeriodicEvent(Runnable r, long lInitialDelay,
+		long lPeriod, boolean inEventThread)
+	{
+		return scheduler.addPeriodicEvent(r, lInitialDelay, lPeriod,
+			inEventThread);
+	}
+	
+	/**
+	 * Add a repeating event which is due at fixed intervals, regardless of how
+	 * long each run takes. The same entry is reused for every run, and runs
+	 * never overlap with each other. Cancel it with
+	 * {@link #cancelTimedEvent(int)}.
+	 * @param r Event code
+	 * @param lInitialDelay Delay before first run
+	 * @param lPeriod Interval between due times
+	 * @param policy What to do about runs that are missed because the event
+	 *   fell behind
+	 * @param inEventThread If true, runs event in the user-interface event thread
+	 * @return Unique ID for the event
+	 * @throws IllegalArgumentException If period is not positive
+	 */
+	public static int addFixedRateEvent(Runnable r, long lInitialDelay,
+		long lPeriod, MissedTickPolicy policy, boolean inEventThread)
+	{
+		return scheduler.addFixedRateEvent(r, lInitialDelay, lPeriod, policy,
+			inEventThread);
+	}
+	
+	/**
+	 * Cancel an existing timed event. Events are looked up by ID, so this
+	 * doesn't get slower as more events are pending. Repeating events stop
+	 * repeating; if one is running at the time, that run completes.
 	 * @param id ID of event
 	 */
 	public static void cancelTimedEvent(int id)
 	{
-		synchronized(synch)
-		{
-			for(Iterator<TimedEvent> i=eventQueue.iterator(); i.hasNext();)
-			{
-				TimedEvent te = i.next();
-				if(te.id == id) 
-				{
-					i.remove();
-					synch.notify();
-					break;
-				}					 
-			}
-		}
+		scheduler.cancelTimedEvent(id);
 	}
 	
-	/** Timer thread handles timed events */
-	private static void thread()
+	/**
+	 * Creates a future that completes with the given value after a delay.
+	 * Cancelling the future cancels the timed event.
+	 * @param value Value
+	 * @param lDelay Delay
+	 * @return New future
+	 */
+	public static <T> CompletableFuture<T> completeAfter(T value, long lDelay)
 	{
-		List<Runnable> runList = new LinkedList<Runnable>(),
-			swingRunList = new LinkedList<Runnable>();
-		while(true)
-		{
-			runList.clear();
-			swingRunList.clear();
-			
-			// Wait for next event timeout
-			synchronized(synch)
-			{
-				// Wait for next event, or notify
-				try
-				{
-					if(eventQueue.isEmpty()) 
-					{
-						synch.wait();
-					}
-					else
-					{
-						TimedEvent first = (TimedEvent)eventQueue.first();
-						long wait = first.due-System.currentTimeMillis();
-						if(wait>0)
-						{
-							synch.wait(wait);
-						}
-					}
-				}
-				catch(InterruptedException ie)
-				{
-				}
-				
-				// See if it's time to run events
-				long now=System.currentTimeMillis();
-				while(!eventQueue.isEmpty())
-				{
-					TimedEvent first = eventQueue.first();
-					if(first.due <= now)
-					{						
-						(first.inEventThread ? swingRunList : runList).add(first.r);
-						eventQueue.remove(first);
-					}
-					else
-					{
-						// The list is sorted, so no need to check others
-						break;
-					}
-				}
-			}
-			
-			// Move outside synchronization in order to run events safely
-			for(Runnable r : runList)
-			{
-				try
-				{
-					r.run();	
-				}
-				catch(Throwable t)
-				{
-					if(errorHandler!=null)
-					{
-						errorHandler.reportError(t);
-					}
-					else
-					{
-						t.printStackTrace();
-					}
-				}				
-			}
-			for(final Runnable r : swingRunList)
-			{
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						try
-						{
-							r.run();	
-						}
-						catch(Throwable t)
-						{
-							if(errorHandler!=null)
-							{
-								errorHandler.reportError(t);
-							}
-							else
-							{
-								t.printStackTrace();
-							}
-						}
-					}
-				});
-			}
-		}	
+		return scheduler.completeAfter(value, lDelay);
 	}
 	
-	/** 
-	 * Represents an event that's supposed to occur at a particular time.
-	 * Must be created within oSynch synchronization
-	 */ 
-	private static class TimedEvent implements Comparable<TimedEvent>
+	/**
+	 * Completes a future with a {@link TimeoutException} if it hasn't
+	 * completed within the given time. If the future completes first, the
+	 * timed event is cancelled straight away so it doesn't stay in the queue.
+	 * @param future Future
+	 * @param lTimeout Timeout
+	 * @return The same future
+	 */
+	public static <T> CompletableFuture<T> orTimeout(
+		CompletableFuture<T> future, long lTimeout)
 	{
-		/** Runnable that actually runs at the given time */
-		Runnable r;
-		
-		/** Time it's due */
-		long due;
-		
-		/** True if it should run in the (UI) event thread */
-		boolean inEventThread;
-		
-		/** Unique event ID */
-		int id = (staticID++);
-				
-		/** Static ID assignment */
-		private static int staticID = 0;
-
-		@Override
-		public int compareTo(TimedEvent te)
-		{
-			if(te==this) return 0;
-			
-			if(due < te.due) 
-				return -1;
-			else if(due > te.due) 
-				return 1;
-			else // Same, sort by ID
-			  return id - te.id;			  
-		}
+		return scheduler.orTimeout(future, lTimeout);
+	}
+	
+	/**
+	 * Completes a future with the given value if it hasn't completed within
+	 * the given time. If the future completes first, the timed event is
+	 * cancelled straight away so it doesn't stay in the queue.
+	 * @param future Future
+	 * @param value Value to use after the timeout
+	 * @param lTimeout Timeout
+	 * @return The same future
+	 */
+	public static <T> CompletableFuture<T> completeOnTimeout(
+		CompletableFuture<T> future, T value, long lTimeout)
+	{
+		return scheduler.completeOnTimeout(future, value, lTimeout);
+	}
+	
+	/**
+	 * Reports an error to the error handler, if there is one.
+	 * @param t Error
+	 */
+	static void reportError(Throwable t)
+	{
+		scheduler.reportError(t);
 	}
 }
@@ -0,0 +1,129 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+/**
+ * Represents an event that's supposed to occur at a particular time.
+ */
+class TimedEvent implements Comparable<TimedEvent>
+{
+	/** Runnable that actually runs at the given time */
+	Runnable r;
+
+	/** Time it's due (clock nanoseconds) */
+	long due;
+
+	/** True if it should run in the (UI) event thread */
+	boolean inEventThread;
+
+	/** Events with the same (non-null) key never run at the same time */
+	Object key;
+
+	/**
+	 * Of the user-interface events with the same (non-null) coalescing key
+	 * that fall due together, only the last one runs
+	 */
+	Object coalesceKey;
+
+	/** Period for repeating events (nanoseconds); 0 if it only runs once */
+	long period;
+
+	/**
+	 * For repeating events, true if the period is measured between due
+	 * times, false if it is measured from the end of one run to the next
+	 */
+	boolean fixedRate;
+
+	/** What to do if a fixed-rate event falls behind */
+	TimeUtils.MissedTickPolicy missedTickPolicy;
+
+	/** Priority relative to other events due at the same time */
+	TimeUtils.Priority priority = TimeUtils.Priority.NORMAL;
+
+	/**
+	 * Due time of the run currently being dispatched (differs from due once
+	 * a fixed-rate event has been rescheduled); only used by the timer
+	 * thread
+	 */
+	long runDue;
+
+	/**
+	 * True while the event is in the timer queue; only used by the timer
+	 * thread
+	 */
+	boolean queued;
+
+	/** Shard whose queue the event is in */
+	TimerShard shard;
+
+	/** True once the event has been cancelled */
+	volatile boolean cancelled;
+
+	/**
+	 * True while a run of a repeating event has been handed over but not
+	 * finished; the event is only put back in the queue once it finishes,
+	 * so that slow runs never pile up behind each other
+	 */
+	volatile boolean inFlight;
+
+	/**
+	 * True while the event has been cancelled lazily and is counted as a
+	 * dead entry in its shard's queue
+	 */
+	volatile boolean countedDead;
+
+	/** Unique event ID, given out by its shard when it is added */
+	int id;
+
+	/** Tick in which a {@link TimingWheel} will fire this event */
+	long deadlineTick;
+
+	/** Neighbours in a {@link TimingWheel} bucket */
+	TimedEvent prev, next;
+
+	/** Position in a {@link HeapTimerQueue} */
+	int heapIndex;
+
+	/**
+	 * @return Key used to stop the event running at the same time as
+	 *   others, or null if it doesn't need one
+	 */
+	Object getSerialKey()
+	{
+		if(key == null && period != 0)
+		{
+			// Stop repeating events overlapping with themselves
+			return this;
+		}
+		return key;
+	}
+
+	@Override
+	public int compareTo(TimedEvent te)
+	{
+		if(te==this) return 0;
+
+		if(due < te.due)
+			return -1;
+		else if(due > te.due)
+			return 1;
+		else // Same, sort by ID
+		  return id - te.id;
+	}
+}
@@ -0,0 +1,680 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Timed events that survive a restart. Each task has a name and must be
+ * serializable; it is written to an append-only journal file when scheduled,
+ * and a removal is written when it runs or is cancelled. After a restart,
+ * {@link #restore(long)} puts all the tasks that hadn't run back on the
+ * scheduler in one go.
+ * <p>
+ * The journal is memory-mapped, so writing a record is a memory copy rather
+ * than a system call. Records are kept if the process dies, but not
+ * necessarily if the machine does, unless {@link #sync()} is called. A
+ * record only counts once its first byte is written, which happens last, so
+ * a record that was partly written when the process died is ignored. The
+ * file is compacted (rewritten with only the pending tasks) when it is
+ * opened and when it fills up.
+ * <p>
+ * When a task falls due, its removal is written by a background thread
+ * belonging to the journal, so the timer thread never waits for the file;
+ * the task is then handed back to the scheduler to run. As the removal is
+ * written before the task runs, delivery is at most once: a task that was
+ * running when the process died is not run again after a restart, even if
+ * it didn't finish. (It can run twice only if writing the removal fails,
+ * or the machine dies before the removal reaches the disk.) Tasks that
+ * must complete should schedule themselves again until they have.
+ * <p>
+ * Only one journal can have a file open at a time, in this or any other
+ * process; this is enforced by locking a <tt>.lock</tt> file alongside it.
+ * <p>
+ * Due times are stored as wall-clock times, since the scheduler's clock
+ * doesn't carry over between runs.
+ */
+public class TimerJournal
+{
+	private final static int MAGIC = 0x544a524e;
+	private final static byte ADD = 1, REMOVE = 2;
+	private final static int INITIAL_SIZE = 64 * 1024;
+
+	private final File file;
+	private final Scheduler scheduler;
+	private final Random random = new Random();
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/** Lock on the .lock file, held while the journal is open */
+	private final FileLock lock;
+
+	/** Writes removals for tasks that fall due, off the timer thread */
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(
+		new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "TimerJournal writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** Pending tasks by name */
+	private final Map<String, Task> tasks = new HashMap<String, Task>();
+
+	/** Task in the journal */
+	private static class Task
+	{
+		/** Wall-clock time it's due */
+		private long due;
+		/** Serialized task */
+		private byte[] data;
+		/** Scheduler event ID, or -1 if not yet restored */
+		private int id = -1;
+	}
+
+	/**
+	 * Opens a journal using the default scheduler.
+	 * @param file Journal file; created if it doesn't exist
+	 * @throws IOException Any I/O error
+	 */
+	public TimerJournal(File file) throws IOException
+	{
+		this(file, TimeUtils.getScheduler());
+	}
+
+	/**
+	 * Opens a journal. Tasks in the file are read, but not scheduled until
+	 * {@link #restore(long)} is called.
+	 * @param file Journal file; created if it doesn't exist
+	 * @param scheduler Scheduler to run tasks on
+	 * @throws IOException Any I/O error
+	 */
+	public TimerJournal(File file, Scheduler scheduler) throws IOException
+	{
+		this.file = file;
+		this.scheduler = scheduler;
+		lock = lock(new File(file.getPath() + ".lock"));
+		try
+		{
+			if(file.exists() && file.length() > 0)
+			{
+				load();
+			}
+			rewrite(0);
+		}
+		catch(IOException e)
+		{
+			writer.shutdown();
+			lock.channel().close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Locks the journal so that no other process can use it.
+	 * @param lockFile Lock file; created if it doesn't exist
+	 * @return Lock
+	 * @throws IOException If the journal is already in use, or other I/O error
+	 */
+	private static FileLock lock(File lockFile) throws IOException
+	{
+		FileChannel lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+		FileLock result;
+		try
+		{
+			result = lockChannel.tryLock();
+		}
+		catch(OverlappingFileLockException e)
+		{
+			// Already open in this process
+			result = null;
+		}
+		if(result == null)
+		{
+			lockChannel.close();
+			throw new IOException("Timer journal already in use: " + lockFile);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the existing file into the tasks map.
+	 * @throws IOException Any I/O error
+	 */
+	private void load() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			MappedByteBuffer in = raf.getChannel().map(
+				FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if(in.limit() < 4 || in.getInt(0) != MAGIC)
+			{
+				throw new IOException("Not a timer journal: " + file);
+			}
+			int pos = 4;
+			while(pos + 5 <= in.limit())
+			{
+				byte type = in.get(pos);
+				int length = in.getInt(pos + 1);
+				if((type != ADD && type != REMOVE) || length < 0
+					|| pos + 5 + length > in.limit())
+				{
+					// End of journal, or a record that was never finished
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.position(pos + 5);
+				in.get(payload);
+				pos += 5 + length;
+
+				DataInputStream data = new DataInputStream(
+					new ByteArrayInputStream(payload));
+				String name = data.readUTF();
+				if(type == ADD)
+				{
+					Task task = new Task();
+					task.due = data.readLong();
+					task.data = new byte[data.readInt()];
+					data.readFully(task.data);
+					tasks.put(name, task);
+				}
+				else
+				{
+					tasks.remove(name);
+				}
+			}
+			unmap(in);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Schedules tasks that were pending when the journal was last used. Each
+	 * runs when it was originally due, plus a random delay so that a large
+	 * number of overdue tasks don't all run at once. They are added to the
+	 * scheduler in one batch. Tasks that can't be deserialized are reported
+	 * to the scheduler's error handler and dropped.
+	 * @param lJitter Maximum random delay added to each task, in milliseconds
+	 * @return Number of tasks scheduled
+	 * @throws IOException Any I/O error
+	 * @throws IllegalStateException If the journal has been closed
+	 */
+	public synchronized int restore(long lJitter) throws IOException
+	{
+		checkOpen();
+		long now = System.currentTimeMillis();
+		List<Task> batch = new ArrayList<Task>();
+		List<Runnable> events = new ArrayList<Runnable>();
+		List<Long> delays = new ArrayList<Long>();
+		for(Iterator<Map.Entry<String, Task>> i = tasks.entrySet().iterator();
+			i.hasNext();)
+		{
+			Map.Entry<String, Task> entry = i.next();
+			Task task = entry.getValue();
+			if(task.id != -1)
+			{
+				continue;
+			}
+			Runnable r;
+			try
+			{
+				ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(task.data));
+				r = (Runnable)ois.readObject();
+			}
+			catch(Exception e)
+			{
+				scheduler.reportError(e);
+				i.remove();
+				append(REMOVE, entry.getKey(), null);
+				continue;
+			}
+			long delay = Math.max(0, task.due - now);
+			if(lJitter > 0)
+			{
+				delay += (long)(random.nextDouble() * lJitter);
+			}
+			batch.add(task);
+			events.add(event(entry.getKey(), task, r));
+			delays.add(delay);
+		}
+		if(batch.isEmpty())
+		{
+			return 0;
+		}
+
+		long[] lDelays = new long[delays.size()];
+		for(int i=0; i<lDelays.length; i++)
+		{
+			lDelays[i] = delays.get(i);
+		}
+		int[] ids = scheduler.addTimedEvents(
+			events.toArray(new Runnable[events.size()]), lDelays, false);
+		for(int i=0; i<ids.length; i++)
+		{
+			batch.get(i).id = ids[i];
+		}
+		return ids.length;
+	}
+
+	/**
+	 * Schedules a task and records it in the journal. Any existing task with
+	 * the same name is replaced.
+	 * @param name Name
+	 * @param r Task
+	 * @param lDelay Delay in milliseconds
+	 * @return Scheduler event ID
+	 * @throws IOException If the task can't be serialized, or other I/O error
+	 * @throws IllegalStateException If the journal has been closed
+	 */
+	public synchronized <T extends Runnable & Serializable> int schedule(
+		String name, T r, long lDelay) throws IOException
+	{
+		checkOpen();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(r);
+		oos.close();
+
+		cancelEvent(tasks.remove(name));
+		Task task = new Task();
+		task.due = System.currentTimeMillis() + lDelay;
+		task.data = bytes.toByteArray();
+		append(ADD, name, task);
+		tasks.put(name, task);
+		arm(name, task, r, lDelay);
+		return task.id;
+	}
+
+	/**
+	 * Cancels a task and records that in the journal.
+	 * @param name Name
+	 * @return True if there was a pending task with that name
+	 * @throws IOException Any I/O error
+	 * @throws IllegalStateException If the journal has been closed
+	 */
+	public synchronized boolean cancel(String name) throws IOException
+	{
+		checkOpen();
+		Task task = tasks.remove(name);
+		if(task == null)
+		{
+			return false;
+		}
+		cancelEvent(task);
+		append(REMOVE, name, null);
+		return true;
+	}
+
+	/**
+	 * @return Names of pending tasks, including any not yet restored
+	 */
+	public synchronized Set<String> getNames()
+	{
+		return new HashSet<String>(tasks.keySet());
+	}
+
+	/**
+	 * Forces the journal to disk, so that it survives the machine crashing.
+	 * @throws IllegalStateException If the journal has been closed
+	 */
+	public synchronized void sync()
+	{
+		checkOpen();
+		buffer.force();
+	}
+
+	/**
+	 * @throws IllegalStateException If the journal has been closed
+	 */
+	private void checkOpen()
+	{
+		if(buffer == null)
+		{
+			throw new IllegalStateException("Timer journal has been closed");
+		}
+	}
+
+	/**
+	 * Writes the journal to disk and closes it. Pending tasks are taken off
+	 * the scheduler; they remain in the journal to be restored next time.
+	 * Removals already being written for tasks that fell due are finished
+	 * first. Does nothing if the journal is already closed.
+	 * @throws IOException Any I/O error
+	 */
+	public void close() throws IOException
+	{
+		// Not holding the lock, which the writer needs
+		writer.shutdown();
+		boolean interrupted = false;
+		while(true)
+		{
+			try
+			{
+				writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				break;
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(this)
+		{
+			if(buffer != null)
+			{
+				closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Takes pending tasks off the scheduler and closes the file.
+	 * @throws IOException Any I/O error
+	 */
+	private void closeFile() throws IOException
+	{
+		for(Task task : tasks.values())
+		{
+			cancelEvent(task);
+		}
+		tasks.clear();
+		buffer.force();
+		unmap(buffer);
+		buffer = null;
+		channel.close();
+		lock.channel().close();
+	}
+
+	/**
+	 * Adds the timed event for a task.
+	 * @param name Name
+	 * @param task Task
+	 * @param r Code to run
+	 * @param lDelay Delay in milliseconds
+	 */
+	private void arm(String name, Task task, Runnable r, long lDelay)
+	{
+		task.id = scheduler.addTimedEvent(event(name, task, r), lDelay, false);
+	}
+
+	/**
+	 * @param name Name
+	 * @param task Task
+	 * @param r Code to run
+	 * @return Timed event for the task
+	 */
+	private Runnable event(final String name, final Task task, final Runnable r)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fire(name, task, r);
+			}
+
+			@Override
+			public String toString()
+			{
+				return name;
+			}
+		};
+	}
+
+	/**
+	 * @param task Task whose timed event should be cancelled, or null
+	 */
+	private void cancelEvent(Task task)
+	{
+		if(task != null && task.id != -1)
+		{
+			scheduler.cancelTimedEvent(task.id);
+		}
+	}
+
+	/**
+	 * Called when a task falls due. Hands it to the writer thread, which
+	 * records that it has run and then gives it back to the scheduler to
+	 * run.
+	 * @param name Name
+	 * @param task Task
+	 * @param r Code to run
+	 */
+	private void fire(final String name, final Task task, final Runnable r)
+	{
+		try
+		{
+			writer.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(!remove(name, task))
+					{
+						return;
+					}
+					try
+					{
+						scheduler.addTimedEvent(r, 0, false);
+					}
+					catch(IllegalStateException e)
+					{
+						// Scheduler shut down in the meantime
+						scheduler.reportError(e);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			// Journal closed; the task stays in it for next time
+		}
+	}
+
+	/**
+	 * Takes a task that has fallen due out of the journal. Called on the
+	 * writer thread.
+	 * @param name Name
+	 * @param task Task
+	 * @return True if the task should run; false if it was replaced or
+	 *   cancelled, or the journal closed, in the meantime
+	 */
+	private synchronized boolean remove(String name, Task task)
+	{
+		if(buffer == null || tasks.get(name) != task)
+		{
+			return false;
+		}
+		tasks.remove(name);
+		try
+		{
+			append(REMOVE, name, null);
+		}
+		catch(IOException e)
+		{
+			// Still run it; at worst it runs again after a restart
+			scheduler.reportError(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a record, compacting or enlarging the file if it is full.
+	 * @param type ADD or REMOVE
+	 * @param name Task name
+	 * @param task Task for ADD records
+	 * @throws IOException Any I/O error
+	 */
+	private void append(byte type, String name, Task task) throws IOException
+	{
+		byte[] payload = payload(name, task);
+		int pos = buffer.position();
+		if(pos + 5 + payload.length + 1 > buffer.limit())
+		{
+			rewrite(5 + payload.length);
+			pos = buffer.position();
+		}
+		buffer.putInt(pos + 1, payload.length);
+		buffer.position(pos + 5);
+		buffer.put(payload);
+		// Written last so that a partial record is never read
+		buffer.put(pos, type);
+	}
+
+	/**
+	 * @param name Task name
+	 * @param task Task for ADD records, or null for REMOVE
+	 * @return Record payload
+	 * @throws IOException Any I/O error
+	 */
+	private static byte[] payload(String name, Task task) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeUTF(name);
+		if(task != null)
+		{
+			data.writeLong(task.due);
+			data.writeInt(task.data.length);
+			data.write(task.data);
+		}
+		data.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Rewrites the journal with only the pending tasks. The new file is
+	 * written alongside and then moved over the old one, so the journal is
+	 * never left incomplete. The old file is unmapped first, as Windows won't
+	 * replace a file that is mapped.
+	 * @param extra Space needed for the record about to be written
+	 * @throws IOException Any I/O error
+	 */
+	private void rewrite(int extra) throws IOException
+	{
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(records);
+		data.writeInt(MAGIC);
+		for(Map.Entry<String, Task> entry : tasks.entrySet())
+		{
+			byte[] payload = payload(entry.getKey(), entry.getValue());
+			data.writeByte(ADD);
+			data.writeInt(payload.length);
+			data.write(payload);
+		}
+		data.close();
+		int used = records.size();
+		int size = INITIAL_SIZE;
+		while(size < 2 * (used + extra + 1))
+		{
+			size *= 2;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try
+		{
+			// Written rather than mapped, so there is no mapping left behind
+			raf.setLength(0);
+			raf.write(records.toByteArray());
+			raf.setLength(size);
+			raf.getChannel().force(true);
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		if(channel != null)
+		{
+			unmap(buffer);
+			buffer = null;
+			channel.close();
+		}
+		try
+		{
+			Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.position(used);
+	}
+
+	/**
+	 * Releases a mapping now rather than when the buffer is garbage
+	 * collected. If the JVM doesn't allow this, it is left to the garbage
+	 * collector.
+	 * @param mapped Buffer; must not be used afterwards
+	 */
+	private static void unmap(MappedByteBuffer mapped)
+	{
+		try
+		{
+			// Java 9 and above
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(
+				theUnsafe.get(null), mapped);
+		}
+		catch(Exception e)
+		{
+			try
+			{
+				// Java 8
+				Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(mapped);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+			catch(Exception e2)
+			{
+				// Left to the garbage collector
+			}
+		}
+	}
+}
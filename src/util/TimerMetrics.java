@@ -0,0 +1,242 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Snapshot of timer statistics, obtained from {@link TimeUtils#getMetrics()}.
+ * Statistics cover the period since metrics were turned on or last reset.
+ * All times are in nanoseconds.
+ */
+public class TimerMetrics
+{
+	private final int queueDepth;
+	private final Histogram lag, swingDuration, otherDuration;
+	private final Histogram[] laneLag;
+	private final long cancellations, slowEvents, deferred, period;
+
+	/**
+	 * @param queueDepth Number of pending events
+	 * @param lag Lag histogram (copied)
+	 * @param laneLag Lag histogram for each priority (copied)
+	 * @param swingDuration Duration of user-interface events (copied)
+	 * @param otherDuration Duration of other events (copied)
+	 * @param cancellations Number of cancellations
+	 * @param slowEvents Number of events over the slow threshold
+	 * @param deferred Number of background events deferred
+	 * @param period Length of time covered
+	 */
+	TimerMetrics(int queueDepth, Histogram lag, Histogram[] laneLag,
+		Histogram swingDuration, Histogram otherDuration, long cancellations,
+		long slowEvents, long deferred, long period)
+	{
+		this.queueDepth = queueDepth;
+		this.lag = lag.copy();
+		this.laneLag = new Histogram[laneLag.length];
+		for(int i=0; i<laneLag.length; i++)
+		{
+			this.laneLag[i] = laneLag[i].copy();
+		}
+		this.swingDuration = swingDuration.copy();
+		this.otherDuration = otherDuration.copy();
+		this.cancellations = cancellations;
+		this.slowEvents = slowEvents;
+		this.deferred = deferred;
+		this.period = period;
+	}
+
+	/** @return Number of events pending when the snapshot was taken */
+	public int getQueueDepth()
+	{
+		return queueDepth;
+	}
+
+	/**
+	 * @return Histogram of how late events started, compared to when they
+	 *   were due
+	 */
+	public Histogram getLag()
+	{
+		return lag;
+	}
+
+	/**
+	 * @param priority Priority lane
+	 * @return Histogram of how late events with that priority started
+	 */
+	public Histogram getLag(TimeUtils.Priority priority)
+	{
+		return laneLag[priority.ordinal()];
+	}
+
+	/**
+	 * @param inEventThread True for events run in the user-interface event
+	 *   thread, false for others
+	 * @return Histogram of how long events took to run
+	 */
+	public Histogram getDuration(boolean inEventThread)
+	{
+		return inEventThread ? swingDuration : otherDuration;
+	}
+
+	/** @return Number of events cancelled */
+	public long getCancellations()
+	{
+		return cancellations;
+	}
+
+	/** @return Average number of events cancelled per second */
+	public double getCancellationsPerSecond()
+	{
+		if(period <= 0)
+		{
+			return 0.0;
+		}
+		return cancellations * 1000000000.0 / period;
+	}
+
+	/**
+	 * @return Number of events that took longer than the slow event threshold
+	 * @see TimeUtils#setSlowEventThreshold(long)
+	 */
+	public long getSlowEvents()
+	{
+		return slowEvents;
+	}
+
+	/**
+	 * @return Number of times background events were deferred because the
+	 *   timer was overloaded
+	 * @see TimeUtils#setOverloadThreshold(long)
+	 */
+	public long getDeferred()
+	{
+		return deferred;
+	}
+
+	/** @return Length of time these statistics cover */
+	public long getPeriod()
+	{
+		return period;
+	}
+
+	/**
+	 * Histogram of times, using power-of-two buckets. Recording a value is
+	 * cheap and doesn't lock, so it can be done on every event.
+	 */
+	public static class Histogram
+	{
+		/** Bucket i counts values below 2^i and at least 2^(i-1) */
+		private final AtomicLongArray counts = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong(), total = new AtomicLong(),
+			max = new AtomicLong();
+
+		Histogram()
+		{
+		}
+
+		/**
+		 * Records a value.
+		 * @param value Time; negative values count as zero
+		 */
+		void record(long value)
+		{
+			if(value < 0)
+			{
+				value = 0;
+			}
+			counts.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			total.addAndGet(value);
+			while(true)
+			{
+				long oldMax = max.get();
+				if(value <= oldMax || max.compareAndSet(oldMax, value))
+				{
+					break;
+				}
+			}
+		}
+
+		/** @return Copy of this histogram */
+		Histogram copy()
+		{
+			Histogram h = new Histogram();
+			for(int i=0; i<counts.length(); i++)
+			{
+				h.counts.set(i, counts.get(i));
+			}
+			h.count.set(count.get());
+			h.total.set(total.get());
+			h.max.set(max.get());
+			return h;
+		}
+
+		/** @return Number of values recorded */
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		/** @return Largest value recorded */
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		/** @return Mean of values recorded, or 0 if none */
+		public double getMean()
+		{
+			long n = count.get();
+			return n == 0 ? 0.0 : (double)total.get() / n;
+		}
+
+		/**
+		 * Obtains an approximate percentile. The result is the upper limit of
+		 * the bucket that contains the percentile, so it may overestimate by up
+		 * to a factor of two (but never exceeds the largest value).
+		 * @param percentile Percentile, from 0 to 100
+		 * @return Value at that percentile, or 0 if no values are recorded
+		 */
+		public long getPercentile(double percentile)
+		{
+			long n = count.get();
+			if(n == 0)
+			{
+				return 0;
+			}
+			long target = (long)Math.ceil(n * percentile / 100.0);
+			if(target < 1)
+			{
+				target = 1;
+			}
+			long seen = 0;
+			for(int i=0; i<counts.length(); i++)
+			{
+				seen += counts.get(i);
+				if(seen >= target)
+				{
+					return Math.min((1L << i) - 1, max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+}
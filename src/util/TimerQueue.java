@@ -0,0 +1,72 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.*;
+
+/**
+ * Structure holding the pending events for a {@link TimerShard}. All
+ * methods are called on the shard's thread.
+ */
+interface TimerQueue
+{
+	/**
+	 * Adds an event.
+	 * @param te Event
+	 */
+	public void add(TimedEvent te);
+
+	/**
+	 * Removes an event.
+	 * @param te Event, which must currently be in this queue
+	 */
+	public void remove(TimedEvent te);
+
+	/** @return True if there are no pending events */
+	public boolean isEmpty();
+
+	/** @return Number of pending events */
+	public int size();
+
+	/**
+	 * @return Time at which the queue next needs checking, or Long.MAX_VALUE
+	 *   if it is empty
+	 */
+	public long nextCheck();
+
+	/**
+	 * Removes all events that are due and adds them to a list, in the order
+	 * they should run.
+	 * @param now Current time
+	 * @param due List that receives due events
+	 */
+	public void pollDue(long now, List<TimedEvent> due);
+
+	/**
+	 * Removes all events, adding them to a collection.
+	 * @param all Collection that receives all pending events
+	 */
+	public void drainTo(Collection<TimedEvent> all);
+
+	/**
+	 * Called when the queue is empty and the clock has been changed.
+	 * @param now Current time on the new clock
+	 */
+	public void reset(long now);
+}
@@ -0,0 +1,687 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * One timer thread of a {@link Scheduler}, with its own queue of events.
+ */
+class TimerShard
+{
+	/** Orders events by priority only */
+	private final static Comparator<TimedEvent> PRIORITY_ORDER =
+		new Comparator<TimedEvent>()
+		{
+			@Override
+			public int compare(TimedEvent a, TimedEvent b)
+			{
+				return a.priority.ordinal() - b.priority.ordinal();
+			}
+		};
+
+	/** Number of slots in the submission ring */
+	private final static int RING_SIZE = 1024;
+
+	/** Scheduler this belongs to */
+	private final Scheduler scheduler;
+
+	/** Pending events on this shard by ID */
+	final EventIndex pending = new EventIndex();
+
+	/** Position of this shard in the scheduler, kept in the low bits of IDs */
+	private final int index;
+
+	/** Number of low bits of each ID that hold the shard position */
+	private final int indexBits;
+
+	/** Used to give out IDs */
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/** Events in queue; only used by this shard's thread */
+	private TimerQueue eventQueue=new HeapTimerQueue();
+
+	/**
+	 * New events, and cancelled events, waiting for the thread to put them in
+	 * (or take them out of) the queue. Threads that add events never have to
+	 * wait for the timer thread.
+	 */
+	private final EventRing submissions = new EventRing(RING_SIZE);
+
+	/**
+	 * Submissions that didn't fit in the ring. The order doesn't matter, as
+	 * events are queued in due time/ID order and a cancelled event is never
+	 * queued again.
+	 */
+	private final Queue<TimedEvent> overflow =
+		new ConcurrentLinkedQueue<TimedEvent>();
+
+	/** Changes to make on the thread before handling submissions */
+	private final Queue<Runnable> commands =
+		new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Time at which the thread is going to wake up; new events due before
+	 * this need to wake it. Long.MIN_VALUE while it is awake.
+	 */
+	private volatile long plannedWake = Long.MIN_VALUE;
+
+	/** Number of cancelled events left in the queue by lazy cancellation */
+	private final AtomicInteger deadEntries = new AtomicInteger();
+
+	/** Thread name */
+	private final String name;
+
+	/** Thread that handles timing; null until the first event is submitted */
+	private volatile Thread timerThread;
+
+	/**
+	 * Creates the shard. Its thread doesn't start until it is needed.
+	 * @param scheduler Scheduler this belongs to
+	 * @param name Thread name
+	 * @param index Position of this shard in the scheduler
+	 * @param indexBits Number of bits needed to hold any shard position
+	 */
+	TimerShard(Scheduler scheduler, String name, int index, int indexBits)
+	{
+		this.scheduler = scheduler;
+		this.name = name;
+		this.index = index;
+		this.indexBits = indexBits;
+	}
+
+	/**
+	 * @return New event ID, unique within the scheduler, with this shard's
+	 *   position in the low bits so that the event can be found from it
+	 */
+	int nextId()
+	{
+		return (nextId.getAndIncrement() << indexBits) | index;
+	}
+
+	/**
+	 * Starts the thread if it hasn't been started already. Once it has
+	 * finished (after shutdown) it is not started again.
+	 * @return Thread
+	 */
+	private synchronized Thread start()
+	{
+		if(timerThread == null)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					thread();
+				}
+			}, name);
+			t.start();
+			timerThread = t;
+		}
+		return timerThread;
+	}
+
+	/**
+	 * Passes a new event to the thread, starting it if necessary and waking
+	 * it if the event is due before it would otherwise wake up.
+	 * @param te Event
+	 */
+	void submit(TimedEvent te)
+	{
+		enqueue(te);
+		wakeFor(te.due);
+	}
+
+	/**
+	 * Passes a new event to the thread without waking it. Call
+	 * {@link #wakeFor(long)} afterwards.
+	 * @param te Event
+	 */
+	void submitQuietly(TimedEvent te)
+	{
+		enqueue(te);
+	}
+
+	/**
+	 * Hands an event to the thread, in the ring if there is room.
+	 * @param te Event
+	 */
+	private void enqueue(TimedEvent te)
+	{
+		int waiting = submissions.offer(te);
+		if(waiting == 0)
+		{
+			overflow.add(te);
+		}
+		if(waiting == 0 || waiting > RING_SIZE / 2)
+		{
+			// Thread may be asleep until a distant due time; get it to empty
+			// the ring before it fills up
+			wake();
+		}
+	}
+
+	/**
+	 * Waits until the thread has taken in everything submitted so far. Does
+	 * nothing if the thread isn't running.
+	 */
+	void awaitSubmissions()
+	{
+		Thread t = timerThread;
+		while(!noSubmissions() && t != null && t.isAlive())
+		{
+			LockSupport.unpark(t);
+			Thread.yield();
+		}
+	}
+
+	/** @return True if no events are waiting to be taken in */
+	private boolean noSubmissions()
+	{
+		return submissions.isEmpty() && overflow.isEmpty();
+	}
+
+	/**
+	 * Starts the thread if necessary, or wakes it if newly submitted events
+	 * are due before it would otherwise wake up.
+	 * @param due Earliest due time of the new events
+	 */
+	void wakeFor(long due)
+	{
+		Thread t = timerThread;
+		if(t == null)
+		{
+			// New thread handles submissions before waiting
+			start();
+		}
+		else if(due < plannedWake)
+		{
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Passes a cancelled event to the thread. It takes the event out of the
+	 * queue next time it wakes; until then the event will be skipped if it
+	 * falls due.
+	 * @param te Event
+	 */
+	void cancel(TimedEvent te)
+	{
+		enqueue(te);
+	}
+
+	/**
+	 * Cancels an event by leaving it where it is, to be skipped when it falls
+	 * due or removed when the queue is compacted. It counts as a dead entry
+	 * until then (or until the thread finds it was never in the queue).
+	 * @param te Event
+	 */
+	void markDead(TimedEvent te)
+	{
+		te.countedDead = true;
+		deadEntries.incrementAndGet();
+		// Set last, so that anything that sees it cancelled sees it counted
+		te.cancelled = true;
+	}
+
+	/**
+	 * Stops counting a cancelled event as a dead entry, once it has left the
+	 * queue or turned out not to be in it. Does nothing if it wasn't counted.
+	 * @param te Cancelled event
+	 */
+	void dropDead(TimedEvent te)
+	{
+		if(te.countedDead)
+		{
+			te.countedDead = false;
+			deadEntries.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Rebuilds the queue without cancelled events, if enough of it is dead.
+	 * Only called on this shard's thread.
+	 * @param force If true, rebuilds it if there are any dead entries
+	 */
+	private void compactIfNeeded(boolean force)
+	{
+		int dead = deadEntries.get();
+		if(dead <= 0)
+		{
+			return;
+		}
+		double threshold = scheduler.getCompactThreshold();
+		if(!force && (threshold == 0 || dead < threshold * eventQueue.size()))
+		{
+			return;
+		}
+		List<TimedEvent> all = new ArrayList<TimedEvent>(eventQueue.size());
+		eventQueue.drainTo(all);
+		for(TimedEvent te : all)
+		{
+			if(te.cancelled)
+			{
+				te.queued = false;
+				dropDead(te);
+			}
+			else
+			{
+				eventQueue.add(te);
+			}
+		}
+	}
+
+	/**
+	 * Makes a change on this shard's thread, which owns the event queue.
+	 * @param r Change
+	 */
+	void runOnTimerThread(Runnable r)
+	{
+		commands.add(r);
+		wake();
+	}
+
+	/**
+	 * Wakes the thread so that it checks the clock again. Does nothing if the
+	 * thread hasn't started; changes made with {@link #runOnTimerThread(Runnable)}
+	 * are then applied when it does.
+	 */
+	void wake()
+	{
+		Thread t = timerThread;
+		if(t != null)
+		{
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Waits for the thread to finish after the scheduler is shut down or
+	 * starts draining.
+	 * @param deadline Time to give up (System.nanoTime)
+	 * @return True if the thread has finished or never started
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	boolean awaitStop(long deadline) throws InterruptedException
+	{
+		Thread t = timerThread;
+		if(t == null)
+		{
+			return true;
+		}
+		long wait = deadline - System.nanoTime();
+		if(wait > 0)
+		{
+			TimeUnit.NANOSECONDS.timedJoin(t, wait);
+		}
+		return !t.isAlive();
+	}
+
+	/**
+	 * Changes the queue. Only called on this shard's thread.
+	 * @param newQueue New queue; all pending events are moved to it
+	 */
+	void setQueue(TimerQueue newQueue)
+	{
+		List<TimedEvent> pending = new LinkedList<TimedEvent>();
+		eventQueue.drainTo(pending);
+		for(TimedEvent te : pending)
+		{
+			newQueue.add(te);
+		}
+		eventQueue = newQueue;
+	}
+
+	/**
+	 * Adjusts pending events after the clock changes. Only called on this
+	 * shard's thread.
+	 * @param oldNow Time on old clock when it changed
+	 * @param newNow Time on new clock when it changed
+	 */
+	void rebase(long oldNow, long newNow)
+	{
+		List<TimedEvent> pending = new LinkedList<TimedEvent>();
+		eventQueue.drainTo(pending);
+		eventQueue.reset(newNow);
+		for(TimedEvent te : pending)
+		{
+			if(te.due != Long.MAX_VALUE)
+			{
+				te.due = Scheduler.dueTime(newNow, te.due - oldNow);
+			}
+			eventQueue.add(te);
+		}
+	}
+
+	/**
+	 * Works out when a fixed-rate event is next due, applying its missed-tick
+	 * policy if the time for one or more runs has already gone.
+	 * @param te Event, with due set to the run that was last due
+	 * @param now Current time
+	 * @return Next due time; not after now if it should run straight away
+	 */
+	static long nextFixedRate(TimedEvent te, long now)
+	{
+		long next = Scheduler.dueTime(te.due, te.period);
+		if(next > now || te.missedTickPolicy == TimeUtils.MissedTickPolicy.BURST)
+		{
+			return next;
+		}
+		long missed = (now - te.due) / te.period;
+		if(te.missedTickPolicy == TimeUtils.MissedTickPolicy.SKIP)
+		{
+			// Next due time on the original schedule that is still to come
+			return Scheduler.dueTime(te.due, (missed + 1) * te.period);
+		}
+		// One run straight away stands for all the missed ones
+		return Scheduler.dueTime(te.due, missed * te.period);
+	}
+
+	/**
+	 * Applies the missed-tick policy to a fixed-rate event that is being
+	 * taken out to run, in case the timer itself fell behind. Only called on
+	 * this shard's thread.
+	 * @param te Event
+	 * @param now Current time
+	 * @return True if the event should run now, false if it has been put
+	 *   back for later
+	 */
+	private boolean catchUp(TimedEvent te, long now)
+	{
+		if(Scheduler.dueTime(te.due, te.period) > now
+			|| te.missedTickPolicy == TimeUtils.MissedTickPolicy.BURST)
+		{
+			// On time, or runs every missed one anyway
+			return true;
+		}
+		long next = nextFixedRate(te, now);
+		if(next > now)
+		{
+			// Skipping the missed runs
+			te.due = next;
+			eventQueue.add(te);
+			te.queued = true;
+			return false;
+		}
+		// This run stands for the missed ones; carry on from the latest
+		te.due = next;
+		return true;
+	}
+
+	/**
+	 * Takes in changes, new events and cancellations from other threads.
+	 * Only called on this shard's thread.
+	 */
+	private void processSubmissions()
+	{
+		while(true)
+		{
+			Runnable r = commands.poll();
+			if(r == null)
+			{
+				break;
+			}
+			scheduler.runEvent(r);
+		}
+		while(true)
+		{
+			TimedEvent te = submissions.poll();
+			if(te == null)
+			{
+				te = overflow.poll();
+				if(te == null)
+				{
+					break;
+				}
+			}
+			if(te.cancelled)
+			{
+				if(te.queued)
+				{
+					eventQueue.remove(te);
+					te.queued = false;
+				}
+				dropDead(te);
+			}
+			else if(!te.queued)
+			{
+				eventQueue.add(te);
+				te.queued = true;
+			}
+		}
+	}
+
+	/** Timer thread handles timed events */
+	private void thread()
+	{
+		// Reused each time round so that dispatching doesn't allocate
+		List<TimedEvent> runList = new ArrayList<TimedEvent>(),
+			swingRunList = new ArrayList<TimedEvent>();
+		List<TimedEvent> dueList = new ArrayList<TimedEvent>();
+		while(true)
+		{
+			runList.clear();
+			swingRunList.clear();
+			dueList.clear();
+
+			processSubmissions();
+			int state = scheduler.getState();
+			if(state == Scheduler.STOPPED)
+			{
+				// Discard anything still pending
+				List<TimedEvent> discarded = new LinkedList<TimedEvent>();
+				eventQueue.drainTo(discarded);
+				for(TimedEvent te : discarded)
+				{
+					scheduler.removePending(te);
+				}
+				return;
+			}
+
+			// See if it's time to run events
+			long now=scheduler.nanoTime();
+			eventQueue.pollDue(now, dueList);
+			boolean prioritised = false;
+			for(TimedEvent te : dueList)
+			{
+				te.queued = false;
+				te.runDue = te.due;
+				if(te.priority == TimeUtils.Priority.BACKGROUND && !te.cancelled)
+				{
+					long defer = scheduler.deferBackground(now, te.due);
+					if(defer != 0)
+					{
+						if(te.fixedRate)
+						{
+							// Puts it back for its next run, skipping this one
+							te.due = Scheduler.dueTime(te.due,
+								((now - te.due) / te.period + 1) * te.period);
+						}
+						else
+						{
+							te.due = Scheduler.dueTime(now, defer);
+						}
+						eventQueue.add(te);
+						te.queued = true;
+						continue;
+					}
+				}
+				if(te.period == 0)
+				{
+					if(!scheduler.removePending(te))
+					{
+						// Cancelled since it was last checked
+						dropDead(te);
+						continue;
+					}
+				}
+				else if(te.cancelled)
+				{
+					dropDead(te);
+					continue;
+				}
+				else if(te.inFlight)
+				{
+					// Last run hasn't finished; it puts the event back when it does
+					continue;
+				}
+				else if(te.fixedRate && !catchUp(te, now))
+				{
+					continue;
+				}
+				else
+				{
+					te.inFlight = true;
+				}
+				if(te.priority != TimeUtils.Priority.NORMAL)
+				{
+					prioritised = true;
+				}
+				if(te.inEventThread)
+				{
+					swingRunList.add(te);
+				}
+				else
+				{
+					runList.add(te);
+				}
+			}
+			if(prioritised)
+			{
+				// Stable sort, so events with the same priority stay in due order
+				Collections.sort(runList, PRIORITY_ORDER);
+				Collections.sort(swingRunList, PRIORITY_ORDER);
+			}
+			KeyedExecutor currentDispatcher = scheduler.getDispatcher();
+
+			for(TimedEvent te : runList)
+			{
+				if(currentDispatcher == null)
+				{
+					scheduler.runTimedEvent(te, te.runDue);
+					continue;
+				}
+
+				final TimedEvent event = te;
+				final long due = te.runDue;
+				currentDispatcher.execute(te.getSerialKey(), new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						scheduler.runTimedEvent(event, due);
+					}
+				});
+			}
+			if(!swingRunList.isEmpty())
+			{
+				// Hand over everything due at once as a single task
+				SwingUtilities.invokeLater(new SwingBatch(swingRunList));
+			}
+
+			// Dead entries would otherwise hold up draining until they fall due
+			compactIfNeeded(state == Scheduler.DRAINING);
+			if(state == Scheduler.DRAINING && eventQueue.isEmpty()
+				&& noSubmissions())
+			{
+				// Everything has run
+				return;
+			}
+
+			// Wait until the next event is due, or something new is submitted.
+			// Other threads check plannedWake after adding submissions, so
+			// set it before checking for them
+			long next = eventQueue.nextCheck();
+			plannedWake = next;
+			if(noSubmissions() && commands.isEmpty())
+			{
+				if(next == Long.MAX_VALUE)
+				{
+					LockSupport.park();
+				}
+				else
+				{
+					long wait = next - scheduler.nanoTime();
+					if(wait > 0)
+					{
+						LockSupport.parkNanos(wait);
+					}
+				}
+			}
+			plannedWake = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Runs, in order, all the user-interface events that fell due together.
+	 */
+	private class SwingBatch implements Runnable
+	{
+		private TimedEvent[] events;
+		private long[] dueTimes;
+
+		/**
+		 * @param due Events in order; if there are several with the same
+		 *   coalescing key, only the last is kept
+		 */
+		private SwingBatch(List<TimedEvent> due)
+		{
+			Set<Object> coalesced = null;
+			LinkedList<TimedEvent> kept = new LinkedList<TimedEvent>();
+			for(ListIterator<TimedEvent> i=due.listIterator(due.size()); i.hasPrevious();)
+			{
+				TimedEvent te = i.previous();
+				if(te.coalesceKey != null)
+				{
+					if(coalesced == null)
+					{
+						coalesced = new HashSet<Object>();
+					}
+					if(!coalesced.add(te.coalesceKey))
+					{
+						continue;
+					}
+				}
+				kept.addFirst(te);
+			}
+			events = kept.toArray(new TimedEvent[kept.size()]);
+			dueTimes = new long[events.length];
+			for(int i=0; i<events.length; i++)
+			{
+				dueTimes[i] = events[i].runDue;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			for(int i=0; i<events.length; i++)
+			{
+				scheduler.runTimedEvent(events[i], dueTimes[i]);
+			}
+		}
+	}
+}
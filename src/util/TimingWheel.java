@@ -0,0 +1,305 @@
+/*
+This file is part of leafdigital util.
+
+util is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+util is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with util.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package util;
+
+import java.util.*;
+
+/**
+ * Hashed timing wheel. Time is divided into ticks of fixed length and each
+ * event is linked into the bucket for the tick it falls due in, so adding
+ * and removing events takes constant time however many are pending. Events
+ * more than one revolution away share a bucket with nearer ones and are
+ * simply left alone until their own tick comes round.
+ * <p>
+ * Events never fire early, but may fire up to one tick late. Events that
+ * fall due in the same tick run in the usual due time/ID order. The thread
+ * only wakes for ticks that have something due, so a few distant events
+ * don't cost a wakeup every tick.
+ */
+class TimingWheel implements TimerQueue
+{
+	/** Length of each tick */
+	private final long tickLength;
+
+	/** First event in each bucket */
+	private final TimedEvent[] heads;
+
+	/** Last event in each bucket */
+	private final TimedEvent[] tails;
+
+	/** Number of events in the wheel */
+	private int size;
+
+	/** Time at which tick 0 started */
+	private long origin;
+
+	/** Last tick that has been processed */
+	private long processedTick;
+
+	/** Earliest tick any event is due in, if earliestKnown */
+	private long earliestTick = Long.MAX_VALUE;
+
+	/** False if earliestTick needs working out again */
+	private boolean earliestKnown = true;
+
+	/**
+	 * @param tickLength Length of each tick (nanoseconds)
+	 * @param wheelSize Number of buckets in the wheel
+	 * @param now Current time
+	 * @throws IllegalArgumentException If either size is not positive
+	 */
+	TimingWheel(long tickLength, int wheelSize, long now)
+	{
+		if(tickLength<=0 || wheelSize<=0)
+		{
+			throw new IllegalArgumentException("Invalid wheel size");
+		}
+		this.tickLength = tickLength;
+		heads = new TimedEvent[wheelSize];
+		tails = new TimedEvent[wheelSize];
+		origin = now;
+		processedTick = 0;
+	}
+
+	@Override
+	public void add(TimedEvent te)
+	{
+		// Round up so that the event doesn't fire early
+		long offset = te.due - origin;
+		if(offset < 0 && te.due > origin)
+		{
+			// Overflow, so it's due in the very distant future
+			offset = Long.MAX_VALUE;
+		}
+		long tick = offset / tickLength;
+		if(offset % tickLength > 0)
+		{
+			tick++;
+		}
+		if(tick <= processedTick)
+		{
+			tick = processedTick + 1;
+		}
+		te.deadlineTick = tick;
+		if(tick < earliestTick)
+		{
+			earliestTick = tick;
+		}
+
+		int bucket = (int)(tick % heads.length);
+		te.next = null;
+		te.prev = tails[bucket];
+		if(te.prev == null)
+		{
+			heads[bucket] = te;
+		}
+		else
+		{
+			te.prev.next = te;
+		}
+		tails[bucket] = te;
+		size++;
+	}
+
+	@Override
+	public void remove(TimedEvent te)
+	{
+		unlink(te);
+		size--;
+		if(te.deadlineTick == earliestTick)
+		{
+			earliestKnown = false;
+		}
+	}
+
+	/**
+	 * Takes an event out of its bucket.
+	 * @param te Event
+	 */
+	private void unlink(TimedEvent te)
+	{
+		int bucket = (int)(te.deadlineTick % heads.length);
+		if(te.prev == null)
+		{
+			heads[bucket] = te.next;
+		}
+		else
+		{
+			te.prev.next = te.next;
+		}
+		if(te.next == null)
+		{
+			tails[bucket] = te.prev;
+		}
+		else
+		{
+			te.next.prev = te.prev;
+		}
+		te.prev = null;
+		te.next = null;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public long nextCheck()
+	{
+		if(size == 0)
+		{
+			return Long.MAX_VALUE;
+		}
+		if(!earliestKnown)
+		{
+			findEarliest();
+		}
+		if(earliestTick > Long.MAX_VALUE / tickLength)
+		{
+			return Long.MAX_VALUE;
+		}
+		long check = origin + earliestTick * tickLength;
+		return check < origin ? Long.MAX_VALUE : check;
+	}
+
+	/**
+	 * Works out earliestTick by going round the buckets from the next tick,
+	 * stopping as soon as nothing later in the wheel could be earlier.
+	 */
+	private void findEarliest()
+	{
+		earliestTick = Long.MAX_VALUE;
+		for(int i=1; i<=heads.length; i++)
+		{
+			long tick = processedTick + i;
+			for(TimedEvent te = heads[(int)(tick % heads.length)]; te != null; te = te.next)
+			{
+				if(te.deadlineTick < earliestTick)
+				{
+					earliestTick = te.deadlineTick;
+				}
+			}
+			if(earliestTick <= tick)
+			{
+				// Anything due sooner would be in a bucket already checked
+				break;
+			}
+		}
+		earliestKnown = true;
+	}
+
+	@Override
+	public void pollDue(long now, List<TimedEvent> due)
+	{
+		long currentTick = (now - origin) / tickLength;
+		if(currentTick <= processedTick)
+		{
+			return;
+		}
+
+		int start = due.size();
+		if(size != 0)
+		{
+			if(currentTick - processedTick >= heads.length)
+			{
+				// A whole revolution (or more) has passed, so check every bucket
+				for(int bucket=0; bucket<heads.length; bucket++)
+				{
+					expire(bucket, currentTick, due);
+				}
+			}
+			else
+			{
+				for(long tick=processedTick+1; tick<=currentTick; tick++)
+				{
+					expire((int)(tick % heads.length), currentTick, due);
+				}
+			}
+		}
+		processedTick = currentTick;
+		if(earliestTick <= currentTick)
+		{
+			earliestKnown = false;
+		}
+
+		if(due.size() - start > 1)
+		{
+			Collections.sort(due.subList(start, due.size()));
+		}
+	}
+
+	/**
+	 * Removes all events from a bucket that are due by the given tick.
+	 * @param bucket Bucket index
+	 * @param currentTick Current tick
+	 * @param due List that receives due events
+	 */
+	private void expire(int bucket, long currentTick, List<TimedEvent> due)
+	{
+		for(TimedEvent te = heads[bucket]; te != null;)
+		{
+			TimedEvent next = te.next;
+			if(te.deadlineTick <= currentTick)
+			{
+				unlink(te);
+				size--;
+				due.add(te);
+			}
+			te = next;
+		}
+	}
+
+	@Override
+	public void drainTo(Collection<TimedEvent> all)
+	{
+		for(int bucket=0; bucket<heads.length; bucket++)
+		{
+			for(TimedEvent te = heads[bucket]; te != null;)
+			{
+				TimedEvent next = te.next;
+				te.prev = null;
+				te.next = null;
+				all.add(te);
+				te = next;
+			}
+			heads[bucket] = null;
+			tails[bucket] = null;
+		}
+		size = 0;
+		earliestTick = Long.MAX_VALUE;
+		earliestKnown = true;
+	}
+
+	@Override
+	public void reset(long now)
+	{
+		origin = now;
+		processedTick = 0;
+		earliestTick = Long.MAX_VALUE;
+		earliestKnown = true;
+	}
+}